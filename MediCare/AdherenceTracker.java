@@ -0,0 +1,358 @@
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.LongFunction;
+
+// Adherence counters kept up to date as doses come due and intakes are logged, so reading them
+// never rescans schedules or history. A dose counts as scheduled once, when it is reminded or
+// taken (whichever happens first), and is filed under the day it was scheduled for. It counts as
+// missed once its missed-dose window closes untaken, until an intake is logged for it after all.
+public class AdherenceTracker {
+    public static final int[] LATE_BOUNDS_MINUTES = {0, 15, 30, 60, 120, 240};
+    public static final String[] LATE_LABELS = {"early", "<15m", "15-30m", "30-60m", "1-2h", "2-4h", "4h+"};
+    public static final int DAYS_KEPT = 64;
+
+    private static final int RECOMPUTE_THRESHOLD = 64;
+
+    public static final class Snapshot {
+        private final long scheduled;
+        private final long taken;
+        private final long missed;
+        private final long[] lateness;
+        private final long[] dailyScheduled;
+        private final long[] dailyTaken;
+        private final long today;
+
+        private Snapshot(Stats stats, long today) {
+            this.scheduled = stats.scheduled;
+            this.taken = stats.taken;
+            this.missed = stats.missed;
+            this.lateness = stats.lateness.clone();
+            this.today = today;
+            dailyScheduled = new long[DAYS_KEPT];
+            dailyTaken = new long[DAYS_KEPT];
+            for (int i = 0; i < DAYS_KEPT; i++) {
+                long day = today - DAYS_KEPT + 1 + i;
+                int slot = slot(day);
+                if (stats.dayKey[slot] == day) {
+                    dailyScheduled[i] = stats.dayScheduled[slot];
+                    dailyTaken[i] = stats.dayTaken[slot];
+                }
+            }
+        }
+
+        public long getScheduled() {
+            return scheduled;
+        }
+
+        public long getTaken() {
+            return taken;
+        }
+
+        // Doses still untaken past their missed-dose window; ones within it are not counted yet.
+        public long getMissed() {
+            return missed;
+        }
+
+        public double getRate() {
+            return scheduled == 0 ? 1.0 : (double) taken / scheduled;
+        }
+
+        // Share of doses scheduled in the last n days (today included) that were taken.
+        public double getRollingRate(int days) {
+            long s = 0;
+            long t = 0;
+            for (int i = Math.max(0, DAYS_KEPT - days); i < DAYS_KEPT; i++) {
+                s += dailyScheduled[i];
+                t += dailyTaken[i];
+            }
+            return s == 0 ? 1.0 : (double) t / s;
+        }
+
+        // Counts per LATE_LABELS bucket, by minutes between the scheduled time and the logged intake.
+        public long[] getLateness() {
+            return lateness.clone();
+        }
+
+        public long getScheduledOn(LocalDate day) {
+            int i = dayIndex(day);
+            return i < 0 ? 0 : dailyScheduled[i];
+        }
+
+        public long getTakenOn(LocalDate day) {
+            int i = dayIndex(day);
+            return i < 0 ? 0 : dailyTaken[i];
+        }
+
+        private int dayIndex(LocalDate day) {
+            long i = day.toEpochDay() - (today - DAYS_KEPT + 1);
+            return i < 0 || i >= DAYS_KEPT ? -1 : (int) i;
+        }
+    }
+
+    // Per-day counts live in a ring indexed by epoch day; a slot is reused once its day is DAYS_KEPT old.
+    private static final class Stats {
+        private long scheduled;
+        private long taken;
+        private long missed;
+        private final long[] lateness = new long[LATE_LABELS.length];
+        private final long[] dayKey = new long[DAYS_KEPT];
+        private final long[] dayScheduled = new long[DAYS_KEPT];
+        private final long[] dayTaken = new long[DAYS_KEPT];
+        // For one medication: the occurrences of its schedule, by ordinal, that the counts already include. A
+        // recompute sets them from the flags it read, so an update for a flag it already saw is not counted twice.
+        private Schedule schedule;
+        private BitSet countedDue = new BitSet();
+        private BitSet countedTaken = new BitSet();
+        private BitSet countedMissed = new BitSet();
+
+        Stats() {
+            Arrays.fill(dayKey, Long.MIN_VALUE);
+        }
+
+        void scheduled(long day) {
+            scheduled++;
+            int slot = claim(day);
+            if (slot >= 0) dayScheduled[slot]++;
+        }
+
+        void taken(long day, long lateMinutes) {
+            taken++;
+            if (lateMinutes != Long.MIN_VALUE) lateness[bucket(lateMinutes)]++;
+            int slot = claim(day);
+            if (slot >= 0) dayTaken[slot]++;
+        }
+
+        void add(Stats other) {
+            scheduled += other.scheduled;
+            taken += other.taken;
+            missed += other.missed;
+            for (int i = 0; i < lateness.length; i++) lateness[i] += other.lateness[i];
+            for (int i = 0; i < DAYS_KEPT; i++) {
+                long day = other.dayKey[i];
+                if (day == Long.MIN_VALUE) continue;
+                int slot = claim(day);
+                if (slot < 0) continue;
+                dayScheduled[slot] += other.dayScheduled[i];
+                dayTaken[slot] += other.dayTaken[i];
+            }
+        }
+
+        // Ordinal of the occurrence in the medication's current schedule, or -1; follows an edit of the schedule.
+        int ordinal(Medication m, LocalDateTime occurrence) {
+            Schedule current = m.getSchedule();
+            if (current != schedule) {
+                if (schedule != null) {
+                    countedDue = Medication.remap(countedDue, schedule, current);
+                    countedTaken = Medication.remap(countedTaken, schedule, current);
+                    countedMissed = Medication.remap(countedMissed, schedule, current);
+                }
+                schedule = current;
+            }
+            return current.ordinalOf(Medication.toEpochMinute(occurrence));
+        }
+
+        private int claim(long day) {
+            int slot = slot(day);
+            if (dayKey[slot] == day) return slot;
+            if (dayKey[slot] > day) return -1;
+            dayKey[slot] = day;
+            dayScheduled[slot] = 0;
+            dayTaken[slot] = 0;
+            return slot;
+        }
+    }
+
+    private final Stats overall = new Stats();
+    private final Map<Long, Stats> byMedication = new HashMap<>();
+    private final Clock clock;
+
+    public AdherenceTracker() {
+        this(Clock.systemDefaultZone());
+    }
+
+    // Rolling windows end on the clock's current date.
+    public AdherenceTracker(Clock clock) {
+        this.clock = clock;
+    }
+
+    public synchronized void doseDue(Medication m, LocalDateTime schedule) {
+        Stats forMedication = stats(m.getId());
+        int ordinal = forMedication.ordinal(m, schedule);
+        if (ordinal < 0 || forMedication.countedDue.get(ordinal)) return;
+        forMedication.countedDue.set(ordinal);
+        long day = schedule.toLocalDate().toEpochDay();
+        overall.scheduled(day);
+        forMedication.scheduled(day);
+    }
+
+    public synchronized void doseTaken(Medication m, LocalDateTime schedule, LocalDateTime loggedAt) {
+        Stats forMedication = stats(m.getId());
+        int ordinal = forMedication.ordinal(m, schedule);
+        if (ordinal < 0 || forMedication.countedTaken.get(ordinal)) return;
+        long day = schedule.toLocalDate().toEpochDay();
+        long late = Medication.toEpochMinute(loggedAt) - Medication.toEpochMinute(schedule);
+        if (!forMedication.countedDue.get(ordinal)) {
+            forMedication.countedDue.set(ordinal);
+            overall.scheduled(day);
+            forMedication.scheduled(day);
+        }
+        if (forMedication.countedMissed.get(ordinal)) {
+            forMedication.countedMissed.clear(ordinal);
+            overall.missed--;
+            forMedication.missed--;
+        }
+        forMedication.countedTaken.set(ordinal);
+        overall.taken(day, late);
+        forMedication.taken(day, late);
+    }
+
+    // The dose's missed-dose window closed before it was taken.
+    public synchronized void doseMissed(Medication m, LocalDateTime schedule) {
+        Stats forMedication = stats(m.getId());
+        int ordinal = forMedication.ordinal(m, schedule);
+        if (ordinal < 0 || forMedication.countedTaken.get(ordinal) || forMedication.countedMissed.get(ordinal)) return;
+        forMedication.countedMissed.set(ordinal);
+        overall.missed++;
+        forMedication.missed++;
+    }
+
+    public synchronized void medicationRemoved(long medicationId) {
+        byMedication.remove(medicationId);
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(overall, LocalDate.now(clock).toEpochDay());
+    }
+
+    public synchronized Snapshot snapshot(long medicationId) {
+        Stats stats = byMedication.get(medicationId);
+        return new Snapshot(stats == null ? new Stats() : stats, LocalDate.now(clock).toEpochDay());
+    }
+
+    // Rebuilds every counter from the medications' reminded/taken flags and the intake records,
+    // splitting the medications across the fork/join pool. Used after a restore or for a backfill.
+    // Updates wait until it is done; the ones for flags it already read are then not counted again.
+    public synchronized void recompute(Medication[] medications,
+            LongFunction<NavigableMap<RecordIndex.Key, Record>> intakes) {
+        long now = Medication.toEpochMinute(LocalDateTime.now(clock));
+        Stats[] perMedication = new Stats[medications.length];
+        Stats total = ForkJoinPool.commonPool().invoke(
+                new Recompute(medications, intakes, now, clock.getZone(), perMedication, 0, medications.length));
+        byMedication.clear();
+        for (int i = 0; i < medications.length; i++) byMedication.put(medications[i].getId(), perMedication[i]);
+        copy(total, overall);
+    }
+
+    private Stats stats(long medicationId) {
+        return byMedication.computeIfAbsent(medicationId, id -> new Stats());
+    }
+
+    private static void copy(Stats from, Stats to) {
+        to.scheduled = from.scheduled;
+        to.taken = from.taken;
+        to.missed = from.missed;
+        System.arraycopy(from.lateness, 0, to.lateness, 0, to.lateness.length);
+        System.arraycopy(from.dayKey, 0, to.dayKey, 0, DAYS_KEPT);
+        System.arraycopy(from.dayScheduled, 0, to.dayScheduled, 0, DAYS_KEPT);
+        System.arraycopy(from.dayTaken, 0, to.dayTaken, 0, DAYS_KEPT);
+    }
+
+    private static int slot(long day) {
+        return (int) Math.floorMod(day, (long) DAYS_KEPT);
+    }
+
+    static int bucket(long lateMinutes) {
+        int b = 0;
+        while (b < LATE_BOUNDS_MINUTES.length && lateMinutes >= LATE_BOUNDS_MINUTES[b]) b++;
+        return b;
+    }
+
+    private static Stats recompute(Medication m, NavigableMap<RecordIndex.Key, Record> intakes, long now,
+            ZoneId zone) {
+        Map<Long, Long> firstIntake = new HashMap<>();
+        for (Record r : intakes.values()) {
+            long minute = ((MedicationRecord) r).getScheduleMinute();
+            if (minute != MedicationRecord.UNKNOWN_SCHEDULE) firstIntake.putIfAbsent(minute, recordMinute(r, zone));
+        }
+        Stats stats = new Stats();
+        BitSet done;
+        BitSet taken = new BitSet();
+        synchronized (m) {
+            stats.schedule = m.getSchedule();
+            done = m.getDoneOrdinals();
+            for (int i = done.nextSetBit(0); i >= 0; i = done.nextSetBit(i + 1)) {
+                if (m.isTaken(i)) taken.set(i);
+            }
+        }
+        Schedule schedule = stats.schedule;
+        for (int i = done.nextSetBit(0); i >= 0 && i < schedule.size(); i = done.nextSetBit(i + 1)) {
+            long minute = schedule.minuteAt(i);
+            long day = Math.floorDiv(minute, 24 * 60);
+            stats.scheduled(day);
+            stats.countedDue.set(i);
+            if (taken.get(i)) {
+                Long logged = firstIntake.get(minute);
+                stats.taken(day, logged == null ? Long.MIN_VALUE : logged - minute);
+                stats.countedTaken.set(i);
+            } else if (minute + m.getMissedAfterMinutes() <= now) {
+                stats.missed++;
+                stats.countedMissed.set(i);
+            }
+        }
+        return stats;
+    }
+
+    // Wall-clock minute in the zone, to compare with schedule minutes.
+    private static long recordMinute(Record r, ZoneId zone) {
+        return Math.floorDiv(Timestamps.toWallClock(r.getEpochSecond(), zone), 60);
+    }
+
+    private static final class Recompute extends RecursiveTask<Stats> {
+        private static final long serialVersionUID = 1L;
+        private final Medication[] medications;
+        private final LongFunction<NavigableMap<RecordIndex.Key, Record>> intakes;
+        private final long now;
+        private final ZoneId zone;
+        private final Stats[] perMedication;
+        private final int from;
+        private final int to;
+
+        Recompute(Medication[] medications, LongFunction<NavigableMap<RecordIndex.Key, Record>> intakes, long now,
+                ZoneId zone, Stats[] perMedication, int from, int to) {
+            this.medications = medications;
+            this.intakes = intakes;
+            this.now = now;
+            this.zone = zone;
+            this.perMedication = perMedication;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected Stats compute() {
+            if (to - from <= RECOMPUTE_THRESHOLD) {
+                Stats total = new Stats();
+                for (int i = from; i < to; i++) {
+                    Stats stats = recompute(medications[i], intakes.apply(medications[i].getId()), now, zone);
+                    perMedication[i] = stats;
+                    total.add(stats);
+                }
+                return total;
+            }
+            int mid = (from + to) >>> 1;
+            Recompute left = new Recompute(medications, intakes, now, zone, perMedication, from, mid);
+            left.fork();
+            Stats total = new Recompute(medications, intakes, now, zone, perMedication, mid, to).compute();
+            total.add(left.join());
+            return total;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+// Callers only enqueue; one writer thread drains the queue in batches into a buffered stream
+// and flushes when it runs dry. A full queue blocks the caller instead of growing without bound.
+public class AsyncOutputSink implements OutputSink {
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int BATCH = 256;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Object CLOSE = new Object();
+
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Writer writer;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    public AsyncOutputSink(OutputStream out) {
+        writer = new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
+        thread = new Thread(this::run, "output-sink");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void print(CharSequence text) {
+        if (closed || text.length() == 0) return;
+        enqueue(text.toString());
+    }
+
+    public void flush() {
+        if (closed || Thread.currentThread() == thread) return;
+        CountDownLatch written = new CountDownLatch(1);
+        enqueue(written);
+        try {
+            written.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void close() {
+        if (closed) return;
+        flush();
+        closed = true;
+        enqueue(CLOSE);
+    }
+
+    private void enqueue(Object item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Object> batch = new ArrayList<>(BATCH);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH - 1);
+                for (Object item : batch) {
+                    if (item == CLOSE) {
+                        writer.flush();
+                        return;
+                    }
+                    if (item instanceof CountDownLatch) {
+                        writer.flush();
+                        ((CountDownLatch) item).countDown();
+                    } else {
+                        writer.write((String) item);
+                    }
+                }
+                if (queue.isEmpty()) writer.flush();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // The console is gone; keep draining so callers waiting on flush() are released.
+                releaseWaiters(batch);
+            }
+            batch.clear();
+        }
+    }
+
+    private static void releaseWaiters(List<Object> batch) {
+        for (Object item : batch) {
+            if (item instanceof CountDownLatch) ((CountDownLatch) item).countDown();
+        }
+    }
+}
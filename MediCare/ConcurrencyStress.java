@@ -0,0 +1,210 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Usage: java ConcurrencyStress [key=value ...]
+//   threads=4 seconds=20 medications=64
+// Hammers one journaled MediCareService from several threads at once, with adds, edits, deletes, intakes and
+// lock-free reads, while another thread advances a VirtualClock so reminders fire in the middle of them. Then
+// checks that no reminder was delivered twice or for a deleted medication, IDs stayed unique, every acknowledged
+// change is in the store, and the journal restores the same state. Exits with status 1 if a check fails.
+public class ConcurrencyStress {
+    // Edits re-anchor the schedule at the current minute, so earlier intakes drop out but later ones stay.
+    private static final String RULE = "every 1m";
+
+    private int threads = 4;
+    private int seconds = 20;
+    private int medications = 64;
+
+    private VirtualClock clock;
+
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final Set<String> reminded = ConcurrentHashMap.newKeySet();
+    // Medication ID to the epoch minutes of its acknowledged intakes.
+    private final Map<Long, Set<Long>> intakes = new ConcurrentHashMap<>();
+    private final Set<Long> deleted = ConcurrentHashMap.newKeySet();
+    // Medication ID to the clock reading once its delete returned. Reminders fire on the clock thread, so one
+    // already under way may still arrive at that instant, but none after it.
+    private final Map<Long, Instant> deletedAt = new ConcurrentHashMap<>();
+    private final AtomicLong added = new AtomicLong();
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder afterDelete = new LongAdder();
+    private final LongAdder badReads = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        ConcurrencyStress stress = new ConcurrencyStress();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("Expected key=value: " + arg);
+            int value = Integer.parseInt(arg.substring(eq + 1));
+            switch (arg.substring(0, eq)) {
+                case "threads": stress.threads = value; break;
+                case "seconds": stress.seconds = value; break;
+                case "medications": stress.medications = value; break;
+                default: throw new IllegalArgumentException("Unknown option: " + arg.substring(0, eq));
+            }
+        }
+        if (stress.threads < 1 || stress.seconds < 1 || stress.medications < 1) {
+            throw new IllegalArgumentException("threads, seconds and medications must be positive");
+        }
+        System.exit(stress.run() ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        Path dir = Files.createTempDirectory("medicare-stress");
+        VirtualClock clock = new VirtualClock(Instant.now().truncatedTo(ChronoUnit.MINUTES), ZoneId.systemDefault());
+        MediCareService service = open(dir, clock);
+        this.clock = clock;
+        service.setReminderListener((m, schedule) -> {
+            if (!reminded.add(m.getId() + "@" + schedule)) duplicates.increment();
+            Instant removed = deletedAt.get(m.getId());
+            if (removed != null && clock.instant().isAfter(removed)) afterDelete.increment();
+        });
+        for (int i = 0; i < medications; i++) add(service);
+
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) workers.add(new Thread(() -> work(service), "stress-" + i));
+        workers.add(new Thread(() -> {
+            while (running.get()) {
+                clock.advance(Duration.ofMinutes(1));
+                operations.increment();
+            }
+        }, "stress-clock"));
+        for (Thread t : workers) t.start();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread t : workers) t.join();
+        System.out.printf("%,d operations on %d threads in %d s, %,d reminders%n", operations.sum(), threads + 1,
+                seconds, reminded.size());
+
+        long lostIntakes = 0;
+        long wrongCount = 0;
+        Set<Long> ids = new HashSet<>();
+        Medication[] live = service.medications();
+        for (Medication m : live) {
+            if (!ids.add(m.getId()) || deleted.contains(m.getId())) wrongCount++;
+            lostIntakes += lostIntakes(m);
+        }
+        if (live.length != service.medicationCount() || live.length != added.get() - deleted.size()) wrongCount++;
+        service.close();
+
+        long notRestored = 0;
+        MediCareService restored = open(dir, clock);
+        for (Medication m : live) {
+            Medication r = restored.findMedication(m.getId());
+            if (r == null || !r.getName().equals(m.getName()) || !r.getDosage().equals(m.getDosage())
+                    || !r.getSchedule().toString().equals(m.getSchedule().toString())
+                    || !r.getTakenSchedules().equals(m.getTakenSchedules())) {
+                notRestored++;
+            }
+        }
+        notRestored += Math.abs(restored.medicationCount() - live.length);
+        restored.close();
+
+        boolean ok = true;
+        ok &= check("no reminder delivered twice", duplicates.sum());
+        ok &= check("no reminder after delete", afterDelete.sum());
+        ok &= check("medication IDs unique and counts match adds minus deletes", wrongCount);
+        ok &= check("readers never saw a half-applied change", badReads.sum());
+        ok &= check("no acknowledged intake lost", lostIntakes);
+        ok &= check("journal restores the final state", notRestored);
+        ok &= check("no operation failed unexpectedly", failures.sum());
+        return ok;
+    }
+
+    private void work(MediCareService service) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        while (running.get()) {
+            Medication[] snapshot = service.medications();
+            Medication m = snapshot.length == 0 ? null : snapshot[rnd.nextInt(snapshot.length)];
+            try {
+                int op = rnd.nextInt(10);
+                if (m == null || op == 0) {
+                    add(service);
+                } else if (op == 1) {
+                    service.editMedication(m.getId(), null, (1 + rnd.nextInt(8)) * 50 + "mg", RULE, null);
+                } else if (op == 2) {
+                    service.deleteMedication(m.getId());
+                    deletedAt.put(m.getId(), clock.instant());
+                    deleted.add(m.getId());
+                } else if (op < 6) {
+                    List<LocalDateTime> schedules = service.selectableSchedules(m);
+                    if (!schedules.isEmpty()) {
+                        LocalDateTime schedule = schedules.get(rnd.nextInt(schedules.size()));
+                        service.logIntake(m.getId(), schedule, "");
+                        intakes.computeIfAbsent(m.getId(), k -> ConcurrentHashMap.newKeySet())
+                                .add(Medication.toEpochMinute(schedule));
+                    }
+                } else {
+                    read(service, snapshot);
+                }
+            } catch (InvalidMedicationException e) {
+                // Deleted or edited by another thread in the meantime.
+            } catch (RuntimeException e) {
+                failures.increment();
+                e.printStackTrace();
+            }
+            operations.increment();
+        }
+    }
+
+    private void add(MediCareService service) {
+        try {
+            service.addMedication("Stress " + added.get(), "100mg", RULE, "With water");
+            added.incrementAndGet();
+        } catch (InvalidMedicationException e) {
+            failures.increment();
+        }
+    }
+
+    // A published snapshot must be complete: sorted unique IDs, every entry fully built.
+    private void read(MediCareService service, Medication[] snapshot) {
+        long previous = 0;
+        for (Medication m : snapshot) {
+            if (m.getId() <= previous || m.getName() == null || m.getSchedule() == null) badReads.increment();
+            previous = m.getId();
+        }
+        for (MediCareService.Reminder r : service.reminders()) {
+            if (r.getMedication() == null) badReads.increment();
+        }
+        for (Record r : service.history().values()) {
+            if (r == null) badReads.increment();
+        }
+    }
+
+    // An intake stays acknowledged unless a later edit re-anchored the schedule past it.
+    private long lostIntakes(Medication m) {
+        long lost = 0;
+        for (long minute : intakes.getOrDefault(m.getId(), Set.of())) {
+            if (m.getSchedule().ordinalOf(minute) >= 0 && !m.isTaken(Medication.fromEpochMinute(minute))) lost++;
+        }
+        return lost;
+    }
+
+    private static MediCareService open(Path dir, VirtualClock clock) {
+        return new MediCareService(200, dir.resolve("medicare-history.log"),
+                MediCareManager.openJournal(dir.resolve("medicare.journal")), null, null, Runnable::run, clock);
+    }
+
+    private static boolean check(String invariant, long violations) {
+        System.out.printf("%-4s %s%s%n", violations == 0 ? "PASS" : "FAIL", invariant,
+                violations == 0 ? "" : " (" + violations + ")");
+        return violations == 0;
+    }
+}
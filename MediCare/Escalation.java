@@ -0,0 +1,52 @@
+import java.time.LocalDateTime;
+
+// A dose that was reminded but still not logged once its grace window ran out.
+public class Escalation {
+    public enum Stage { OVERDUE, MISSED }
+
+    private final Stage stage;
+    private final long medicationId;
+    private final String medicationName;
+    private final String dosage;
+    private final LocalDateTime schedule;
+    private final LocalDateTime detectedAt;
+
+    public Escalation(Stage stage, long medicationId, String medicationName, String dosage,
+            LocalDateTime schedule, LocalDateTime detectedAt) {
+        this.stage = stage;
+        this.medicationId = medicationId;
+        this.medicationName = medicationName;
+        this.dosage = dosage;
+        this.schedule = schedule;
+        this.detectedAt = detectedAt;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    public long getMedicationId() {
+        return medicationId;
+    }
+
+    public String getMedicationName() {
+        return medicationName;
+    }
+
+    public String getDosage() {
+        return dosage;
+    }
+
+    public LocalDateTime getSchedule() {
+        return schedule;
+    }
+
+    public LocalDateTime getDetectedAt() {
+        return detectedAt;
+    }
+
+    public String toString() {
+        return (stage == Stage.MISSED ? "Missed: " : "Overdue: ") + medicationName + " (" + dosage + ") due "
+                + Timestamps.minute(schedule);
+    }
+}
@@ -0,0 +1,256 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Escalations waiting to reach the sink. Each one is written to the outbox file as it arrives, and every
+// interval a patient's pending escalations go out together as one batch. A batch the sink rejects stays
+// pending and is retried with a doubling delay; the file is rewritten to what is left after each delivery,
+// so escalations survive a restart until they are delivered.
+public class EscalationOutbox {
+    private static final long MAX_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final Metrics.Counter PENDING = Metrics.global().level("medicare_escalations_pending",
+            "Escalations waiting in outboxes");
+    private static final Metrics.Counter DELIVERED = Metrics.global().counter("medicare_escalations_delivered_total",
+            "Escalations handed to a sink");
+    private static final Metrics.Counter BATCHES = Metrics.global().counter("medicare_escalation_batches_total",
+            "Batches handed to a sink");
+    private static final Metrics.Counter FAILURES = Metrics.global().counter("medicare_escalation_failures_total",
+            "Batches a sink rejected and that will be retried");
+
+    private static final ScheduledExecutorService DELIVERER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "escalation-outbox");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static class Retry {
+        private long delayMillis;
+        private long notBefore;
+    }
+
+    private final Path file;
+    private final EscalationSink sink;
+    private final long intervalMillis;
+    private final Clock clock;
+    // Told when the outbox file cannot be read or written.
+    private final Consumer<String> warnings;
+    private final Map<String, List<Escalation>> pending = new LinkedHashMap<>();
+    private final Map<String, Retry> retries = new HashMap<>();
+    // Held for a whole delivery round, so close() cannot hand a batch to the sink twice.
+    private final Object deliveryLock = new Object();
+    // Null on a VirtualClock, where deliveries are due at nextRunMillis instead.
+    private final ScheduledFuture<?> deliveryTask;
+    private long nextRunMillis;
+    private BufferedWriter writer;
+    private int count;
+    private boolean closed;
+
+    // A null file keeps the outbox in memory only.
+    public EscalationOutbox(Path file, EscalationSink sink, long intervalMillis) {
+        this(file, sink, intervalMillis, Clock.systemDefaultZone(), w -> { });
+    }
+
+    // Retry delays are measured on the clock. On a VirtualClock there is no delivery thread either: batches go
+    // out every interval of its time, on whichever thread advances it.
+    public EscalationOutbox(Path file, EscalationSink sink, long intervalMillis, Clock clock,
+            Consumer<String> warnings) {
+        this.file = file;
+        this.sink = sink;
+        this.intervalMillis = intervalMillis;
+        this.clock = clock;
+        this.warnings = warnings;
+        if (file != null && Files.exists(file)) load();
+        if (clock instanceof VirtualClock) {
+            nextRunMillis = clock.millis() + intervalMillis;
+            ((VirtualClock) clock).register(new VirtualClock.Timer() {
+                public Instant nextDue() {
+                    synchronized (EscalationOutbox.this) {
+                        return closed ? null : Instant.ofEpochMilli(nextRunMillis);
+                    }
+                }
+
+                public void runDue() {
+                    synchronized (EscalationOutbox.this) {
+                        nextRunMillis = clock.millis() + intervalMillis;
+                    }
+                    deliver();
+                }
+            });
+            deliveryTask = null;
+            return;
+        }
+        deliveryTask = DELIVERER.scheduleWithFixedDelay(this::deliver, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void offer(String patientId, Escalation e) {
+        if (closed) return;
+        pending.computeIfAbsent(patientId, k -> new ArrayList<>()).add(e);
+        count++;
+        PENDING.inc();
+        if (file == null) return;
+        try {
+            if (writer == null) {
+                writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            write(writer, patientId, e);
+            writer.flush();
+        } catch (IOException ex) {
+            warnings.accept("Unable to write escalation outbox: " + ex.getMessage());
+        }
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    // Makes one last delivery attempt; anything still pending stays in the file for next time.
+    public void close() {
+        if (deliveryTask != null) deliveryTask.cancel(false);
+        deliver();
+        synchronized (this) {
+            closed = true;
+            closeWriter();
+        }
+    }
+
+    private void deliver() {
+        synchronized (deliveryLock) {
+            deliverDue();
+        }
+    }
+
+    private void deliverDue() {
+        Map<String, List<Escalation>> due = new LinkedHashMap<>();
+        long now = clock.millis();
+        synchronized (this) {
+            if (closed) return;
+            for (Map.Entry<String, List<Escalation>> e : pending.entrySet()) {
+                Retry retry = retries.get(e.getKey());
+                if (retry == null || retry.notBefore <= now) due.put(e.getKey(), new ArrayList<>(e.getValue()));
+            }
+        }
+        if (due.isEmpty()) return;
+
+        Map<String, List<Escalation>> delivered = new HashMap<>();
+        for (Map.Entry<String, List<Escalation>> e : due.entrySet()) {
+            try {
+                sink.deliver(e.getKey(), e.getValue());
+                delivered.put(e.getKey(), e.getValue());
+                BATCHES.inc();
+                DELIVERED.add(e.getValue().size());
+            } catch (IOException | RuntimeException ex) {
+                FAILURES.inc();
+                synchronized (this) {
+                    Retry retry = retries.computeIfAbsent(e.getKey(), k -> new Retry());
+                    retry.delayMillis = Math.min(MAX_RETRY_MILLIS, Math.max(intervalMillis, retry.delayMillis * 2));
+                    retry.notBefore = clock.millis() + retry.delayMillis;
+                }
+            }
+        }
+        if (delivered.isEmpty()) return;
+
+        synchronized (this) {
+            for (Map.Entry<String, List<Escalation>> e : delivered.entrySet()) {
+                retries.remove(e.getKey());
+                List<Escalation> left = pending.get(e.getKey());
+                if (left == null) continue;
+                int sent = e.getValue().size();
+                left.subList(0, sent).clear();
+                if (left.isEmpty()) pending.remove(e.getKey());
+                count -= sent;
+                PENDING.add(-sent);
+            }
+            rewrite();
+        }
+    }
+
+    // Caller holds the lock.
+    private void rewrite() {
+        if (file == null) return;
+        closeWriter();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, List<Escalation>> e : pending.entrySet()) {
+                for (Escalation escalation : e.getValue()) write(out, e.getKey(), escalation);
+            }
+        } catch (IOException ex) {
+            warnings.accept("Unable to rewrite escalation outbox: " + ex.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            warnings.accept("Unable to replace escalation outbox: " + ex.getMessage());
+        }
+    }
+
+    private void closeWriter() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            warnings.accept("Unable to close escalation outbox: " + e.getMessage());
+        }
+        writer = null;
+    }
+
+    private void load() {
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] f = line.split("\t", -1);
+                if (f.length != 7) continue;
+                try {
+                    Escalation e = new Escalation(Escalation.Stage.valueOf(f[1]), Long.parseLong(f[2]), f[3], f[4],
+                            LocalDateTime.parse(f[5]), LocalDateTime.parse(f[6]));
+                    pending.computeIfAbsent(f[0], k -> new ArrayList<>()).add(e);
+                    count++;
+                    PENDING.inc();
+                } catch (RuntimeException ex) {
+                    warnings.accept("Skipping unreadable escalation: " + line);
+                }
+            }
+        } catch (IOException e) {
+            warnings.accept("Unable to read escalation outbox: " + e.getMessage());
+        }
+    }
+
+    private static void write(BufferedWriter out, String patientId, Escalation e) throws IOException {
+        out.write(patientId);
+        out.write('\t');
+        out.write(e.getStage().name());
+        out.write('\t');
+        out.write(Long.toString(e.getMedicationId()));
+        out.write('\t');
+        out.write(field(e.getMedicationName()));
+        out.write('\t');
+        out.write(field(e.getDosage()));
+        out.write('\t');
+        out.write(e.getSchedule().toString());
+        out.write('\t');
+        out.write(e.getDetectedAt().toString());
+        out.write('\n');
+    }
+
+    private static String field(String s) {
+        return s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
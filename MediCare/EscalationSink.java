@@ -0,0 +1,8 @@
+import java.io.IOException;
+import java.util.List;
+
+// Where escalations end up: a console, a pager, a message queue. A batch holds every escalation a patient
+// built up since the last delivery; throwing leaves the whole batch in the outbox to be retried.
+public interface EscalationSink {
+    void deliver(String patientId, List<Escalation> batch) throws IOException;
+}
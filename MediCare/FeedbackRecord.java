@@ -1,6 +1,14 @@
+import java.io.IOException;
+import java.time.ZoneId;
+
 public class FeedbackRecord extends Record{
     private String feedback;
 
+    public FeedbackRecord(long epochSecond, String description, String feedback){
+        super(epochSecond, description);
+        this.feedback = feedback;
+    }
+
     public FeedbackRecord(String dateTime, String description, String feedback){
         super(dateTime, description);
         this.feedback = feedback;
@@ -10,7 +18,8 @@ public class FeedbackRecord extends Record{
         return feedback;
     }
 
-    public void displayRecord(){
-        System.out.println(dateTime + " - Feedback: " + feedback + " (notes: " + description + ")");
+    public void appendTo(Appendable out, ZoneId zone) throws IOException{
+        Timestamps.appendSecond(Timestamps.toWallClock(epochSecond, zone), out);
+        out.append(" - Feedback: ").append(feedback).append(" (notes: ").append(description).append(')');
     }
 }
\ No newline at end of file
@@ -0,0 +1,109 @@
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+
+public class FixedSchedule implements Schedule {
+    // Sorted and de-duplicated; never modified after construction.
+    private final long[] minutes;
+
+    public FixedSchedule(List<LocalDateTime> schedules) {
+        long[] sorted = new long[schedules.size()];
+        int i = 0;
+        for (LocalDateTime schedule : schedules) sorted[i++] = Medication.toEpochMinute(schedule);
+        Arrays.sort(sorted);
+        int unique = 0;
+        for (i = 0; i < sorted.length; i++) {
+            if (unique == 0 || sorted[i] != sorted[unique - 1]) sorted[unique++] = sorted[i];
+        }
+        minutes = unique == sorted.length ? sorted : Arrays.copyOf(sorted, unique);
+    }
+
+    public FixedSchedule(long[] sortedMinutes) {
+        minutes = sortedMinutes;
+    }
+
+    // Reads "yyyy-MM-dd HH:mm, yyyy-MM-dd HH:mm, ..." straight from the characters: no split, no formatter.
+    public static FixedSchedule parse(CharSequence text, LocalDateTime now) throws InvalidMedicationException {
+        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long[] minutes = new long[1 + count(text, ',')];
+        int n = 0;
+        int start = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            if (i < text.length() && text.charAt(i) != ',') continue;
+            int from = start;
+            int to = i;
+            while (from < to && Character.isWhitespace(text.charAt(from))) from++;
+            while (to > from && Character.isWhitespace(text.charAt(to - 1))) to--;
+            long minute = parseMinute(text, from, to);
+            if (minute * 60 < nowSecond) {
+                throw new InvalidMedicationException("Schedule cannot be in the past: " + text.subSequence(from, to));
+            }
+            minutes[n++] = minute;
+            start = i + 1;
+        }
+        Arrays.sort(minutes);
+        int unique = 0;
+        for (int i = 0; i < minutes.length; i++) {
+            if (unique == 0 || minutes[i] != minutes[unique - 1]) minutes[unique++] = minutes[i];
+        }
+        return new FixedSchedule(unique == minutes.length ? minutes : Arrays.copyOf(minutes, unique));
+    }
+
+    // Epoch minute of text[from, to) in the strict form yyyy-MM-dd HH:mm.
+    static long parseMinute(CharSequence text, int from, int to) throws InvalidMedicationException {
+        if (to - from == 16 && text.charAt(from + 4) == '-' && text.charAt(from + 7) == '-'
+                && text.charAt(from + 10) == ' ' && text.charAt(from + 13) == ':') {
+            int year = digits(text, from, 4);
+            int month = digits(text, from + 5, 2);
+            int day = digits(text, from + 8, 2);
+            int hour = digits(text, from + 11, 2);
+            int minute = digits(text, from + 14, 2);
+            if (year >= 0 && month >= 0 && day >= 0 && hour >= 0 && hour < 24 && minute >= 0 && minute < 60) {
+                try {
+                    return LocalDate.of(year, month, day).toEpochDay() * 24 * 60 + hour * 60 + minute;
+                } catch (DateTimeException e) {
+                    // Falls through to the format error below.
+                }
+            }
+        }
+        throw new InvalidMedicationException("Invalid schedule format: " + text.subSequence(from, to));
+    }
+
+    private static int digits(CharSequence text, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int count(CharSequence text, char c) {
+        int n = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == c) n++;
+        }
+        return n;
+    }
+
+    public long[] getMinutes() {
+        return minutes;
+    }
+
+    public int size() {
+        return minutes.length;
+    }
+
+    public long minuteAt(int ordinal) {
+        return minutes[ordinal];
+    }
+
+    public int ceilingOrdinal(long minute) {
+        int index = Arrays.binarySearch(minutes, minute);
+        return index < 0 ? -index - 1 : index;
+    }
+}
@@ -0,0 +1,86 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+// Usage: java HistoryAfterDelete
+// Adds, edits and deletes a medication on a journaled service, then edits and re-adds the deleted medication
+// in its history, as a change racing the delete would. Checks that the history still ends at the deletion, that
+// point-in-time queries show the medication only while it existed, that the service refuses to edit it, and that
+// the journal restores the same changes. Exits with status 1 if a check fails.
+public class HistoryAfterDelete {
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("medicare-history");
+        VirtualClock clock = new VirtualClock(Instant.now().truncatedTo(ChronoUnit.MINUTES), ZoneId.systemDefault());
+        MediCareService service = open(dir, clock);
+        LocalDateTime start = LocalDateTime.now(clock);
+        Medication m = service.addMedication("Aspirin", "100mg", "daily at 08:00", "After meals");
+        clock.advance(Duration.ofHours(1));
+        service.editMedication(m.getId(), null, "200mg", null, null);
+        clock.advance(Duration.ofHours(1));
+        service.deleteMedication(m.getId());
+        LocalDateTime deletedAt = LocalDateTime.now(clock);
+        clock.advance(Duration.ofHours(1));
+
+        MedicationHistory history = new MedicationHistory();
+        for (MedicationHistory.Version v : service.medicationChanges(m.getId())) replay(history, m, v);
+        m.setDosage("300mg");
+        history.edited(m, LocalDateTime.now(clock));
+        history.added(m, LocalDateTime.now(clock));
+        LocalDateTime later = LocalDateTime.now(clock);
+
+        boolean refused = false;
+        try {
+            service.editMedication(m.getId(), null, "400mg", null, null);
+        } catch (InvalidMedicationException e) {
+            refused = true;
+        }
+        List<MedicationHistory.Version> changes = service.medicationChanges(m.getId());
+        service.close();
+        MediCareService restored = open(dir, clock);
+        List<MedicationHistory.Version> restoredChanges = restored.medicationChanges(m.getId());
+        restored.close();
+
+        boolean ok = true;
+        ok &= check("changes after a delete are ignored", history.changes(m.getId()).size() == 3
+                && history.changes(m.getId()).get(2).isDeleted());
+        ok &= check("deleted medication absent at and after its deletion",
+                history.versionAt(m.getId(), deletedAt) == null && history.versionAt(m.getId(), later) == null
+                        && history.asOf(later).isEmpty());
+        ok &= check("medication present before its deletion",
+                history.versionAt(m.getId(), start.plusMinutes(90)) != null
+                        && "200mg".equals(history.versionAt(m.getId(), start.plusMinutes(90)).getDosage()));
+        ok &= check("service refuses to edit a deleted medication", refused && changes.size() == 3);
+        ok &= check("journal restores the same changes", describe(restoredChanges).equals(describe(changes)));
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static void replay(MedicationHistory history, Medication m, MedicationHistory.Version v) {
+        Medication copy = new Medication(m.getId(), v.getName(), v.getDosage(), v.getSchedule(), v.getInstructions());
+        switch (v.getChange()) {
+            case ADDED: history.added(copy, v.getTime()); break;
+            case EDITED: history.edited(copy, v.getTime()); break;
+            default: history.deleted(m.getId(), v.getTime()); break;
+        }
+    }
+
+    private static String describe(List<MedicationHistory.Version> versions) {
+        StringBuilder sb = new StringBuilder();
+        for (MedicationHistory.Version v : versions) sb.append(v.getChange()).append(' ').append(v).append('\n');
+        return sb.toString();
+    }
+
+    private static MediCareService open(Path dir, VirtualClock clock) {
+        return new MediCareService(200, dir.resolve("medicare-history.log"),
+                MediCareManager.openJournal(dir.resolve("medicare.journal")), null, null, Runnable::run, clock);
+    }
+
+    private static boolean check(String invariant, boolean holds) {
+        System.out.printf("%-4s %s%n", holds ? "PASS" : "FAIL", invariant);
+        return holds;
+    }
+}
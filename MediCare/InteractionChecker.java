@@ -0,0 +1,436 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Drug interactions and duplicate therapies from a local dataset, precomputed so checking a medication
+// costs one name lookup and a bit test per drug already taken. Names (aliases included) map to dense drug ids through a
+// hash-and-displace perfect hash; which drugs interact is a bitset adjacency matrix, and the classes each
+// drug belongs to are a bitset per drug. The checker is immutable and safe to share across patients.
+//
+// The dataset is one declaration per line, fields separated by '|', '#' starting a comment:
+//   alias|<name>|<drug>
+//   class|<class name>|<drug>|<drug>|...
+//   interaction|<drug>|<drug>|<minor, moderate, major or contraindicated>|<hours>|<description>
+// An interaction with hours above zero only matters when doses of the two drugs fall that close together.
+public class InteractionChecker {
+    public enum Severity { MINOR, MODERATE, MAJOR, CONTRAINDICATED }
+
+    private static final int LOOKAHEAD_DAYS = 30;
+    private static final int MAX_SEED = 1 << 20;
+
+    private static final Metrics.Counter CHECKS = Metrics.global().counter("medicare_interaction_checks_total",
+            "Medications checked against a regimen");
+    private static final Metrics.Histogram CHECK_TIME = Metrics.global().histogram("medicare_interaction_check_seconds",
+            "Time to check one medication against a regimen");
+
+    private static final InteractionChecker NONE = new InteractionChecker(new String[0], new int[0],
+            new String[0], new long[0], new String[0], new TreeMap<>());
+
+    private static final class Interaction {
+        private final Severity severity;
+        private final int separationMinutes;
+        private final String description;
+
+        Interaction(Severity severity, int separationMinutes, String description) {
+            this.severity = severity;
+            this.separationMinutes = separationMinutes;
+            this.description = description;
+        }
+    }
+
+    public static final class Finding {
+        private final Severity severity;
+        private final String medication;
+        private final Medication other;
+        private final String reason;
+        private final String kind;
+
+        private Finding(Severity severity, String kind, String medication, Medication other, String reason) {
+            this.severity = severity;
+            this.kind = kind;
+            this.medication = medication;
+            this.other = other;
+            this.reason = reason;
+        }
+
+        public Severity getSeverity() {
+            return severity;
+        }
+
+        // Name of the medication that was checked.
+        public String getMedication() {
+            return medication;
+        }
+
+        // The medication already in the regimen that it conflicts with.
+        public Medication getOther() {
+            return other;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public String toString() {
+            String level = severity.name().charAt(0) + severity.name().substring(1).toLowerCase(Locale.ROOT);
+            return level + " " + kind + ": " + medication + " with " + other.getName() + " - " + reason;
+        }
+    }
+
+    // The drugs one patient is taking, indexed by drug id. Not thread-safe; the owner guards it.
+    public final class Regimen {
+        private final Map<Integer, List<Medication>> byDrug = new HashMap<>();
+        private final Map<Long, Integer> drugOf = new HashMap<>();
+
+        private Regimen() {
+        }
+
+        // Medications whose name is not in the dataset are not tracked.
+        public void add(Medication m) {
+            int drug = drugId(m.getName());
+            if (drug < 0) return;
+            drugOf.put(m.getId(), drug);
+            byDrug.computeIfAbsent(drug, d -> new ArrayList<>(1)).add(m);
+        }
+
+        public void remove(Medication m) {
+            Integer drug = drugOf.remove(m.getId());
+            if (drug == null) return;
+            List<Medication> same = byDrug.get(drug);
+            same.remove(m);
+            if (same.isEmpty()) byDrug.remove(drug);
+        }
+
+        // What a medication with this name and schedule would conflict with, leaving out the one with
+        // exceptId (the medication being edited). Costs one name lookup plus a bit test per distinct drug.
+        public List<Finding> check(String name, Schedule schedule, long exceptId, LocalDateTime now) {
+            long start = System.nanoTime();
+            int drug = drugId(name);
+            if (drug < 0 || byDrug.isEmpty()) {
+                CHECKS.inc();
+                CHECK_TIME.record(System.nanoTime() - start);
+                return Collections.emptyList();
+            }
+            long from = Medication.toEpochMinute(now);
+            long until = Medication.toEpochMinute(now.plusDays(LOOKAHEAD_DAYS));
+            List<Finding> findings = new ArrayList<>();
+            for (Map.Entry<Integer, List<Medication>> e : byDrug.entrySet()) {
+                int other = e.getKey();
+                Interaction interaction = other != drug && interacts(drug, other)
+                        ? details[Arrays.binarySearch(pairs, pair(drug, other))] : null;
+                String sharedClass = interaction == null && other != drug ? sharedClass(drug, other) : null;
+                for (Medication m : e.getValue()) {
+                    if (m.getId() == exceptId) continue;
+                    if (other == drug) {
+                        findings.add(new Finding(Severity.MODERATE, "duplicate therapy", name, m,
+                                "both are " + names[drug]));
+                    } else if (interaction != null && interaction.separationMinutes == 0) {
+                        findings.add(new Finding(interaction.severity, "interaction", name, m, interaction.description));
+                    } else if (interaction != null) {
+                        long[] clash = clash(schedule, m.getSchedule(), from, until, interaction.separationMinutes);
+                        if (clash != null) {
+                            findings.add(new Finding(interaction.severity, "interaction", name, m, interaction.description
+                                    + "; doses at " + Timestamps.minute(clash[0])
+                                    + " and " + Timestamps.minute(clash[1])
+                                    + " are less than " + hours(interaction.separationMinutes) + " apart"));
+                        }
+                    } else if (sharedClass != null) {
+                        findings.add(new Finding(Severity.MODERATE, "duplicate therapy", name, m,
+                                "both are " + sharedClass));
+                    }
+                }
+            }
+            CHECKS.inc();
+            CHECK_TIME.record(System.nanoTime() - start);
+            return findings;
+        }
+    }
+
+    // Perfect hash: a key's bucket picks a seed, and hashing the key with that seed gives its slot.
+    private final int[] seeds;
+    private final String[] slotKeys;
+    private final int[] slotDrugs;
+    // Canonical name of each drug id.
+    private final String[] names;
+    private final int words;
+    // Row d, bit e is set when drugs d and e interact.
+    private final long[] adjacency;
+    private final int classWords;
+    // Row d, bit c is set when drug d belongs to class c.
+    private final long[] memberships;
+    private final String[] classes;
+    // Sorted pair keys, and what each interaction is; only looked up once the adjacency bit says it exists.
+    private final long[] pairs;
+    private final Interaction[] details;
+
+    private InteractionChecker(String[] keys, int[] keyDrugs, String[] names, long[] memberships, String[] classes,
+            TreeMap<Long, Interaction> interactions) {
+        this.names = names;
+        this.classes = classes;
+        this.memberships = memberships;
+        this.classWords = (classes.length + 63) >>> 6;
+        words = (names.length + 63) >>> 6;
+        adjacency = new long[names.length * words];
+        pairs = new long[interactions.size()];
+        details = new Interaction[interactions.size()];
+        int p = 0;
+        for (Map.Entry<Long, Interaction> e : interactions.entrySet()) {
+            long key = e.getKey();
+            int a = (int) (key >>> 32);
+            int b = (int) key;
+            adjacency[a * words + (b >>> 6)] |= 1L << b;
+            adjacency[b * words + (a >>> 6)] |= 1L << a;
+            pairs[p] = key;
+            details[p++] = e.getValue();
+        }
+
+        int buckets = Math.max(1, keys.length / 4);
+        int slots = Math.max(1, keys.length + keys.length / 4);
+        seeds = new int[buckets];
+        slotKeys = new String[slots];
+        slotDrugs = new int[slots];
+        List<List<Integer>> members = new ArrayList<>(buckets);
+        for (int b = 0; b < buckets; b++) members.add(new ArrayList<>(4));
+        for (int k = 0; k < keys.length; k++) members.get(hash(keys[k], 0) % buckets).add(k);
+        Integer[] order = new Integer[buckets];
+        for (int b = 0; b < buckets; b++) order[b] = b;
+        Arrays.sort(order, (x, y) -> members.get(y).size() - members.get(x).size());
+        int[] placed = new int[4];
+        for (int b : order) {
+            List<Integer> bucket = members.get(b);
+            if (bucket.isEmpty()) break;
+            if (placed.length < bucket.size()) placed = new int[bucket.size()];
+            int seed = 1;
+            while (!place(bucket, keys, seed, placed)) {
+                if (++seed > MAX_SEED) throw new IllegalStateException("No perfect hash for the interaction dataset");
+            }
+            seeds[b] = seed;
+            for (int i = 0; i < bucket.size(); i++) {
+                slotKeys[placed[i]] = keys[bucket.get(i)];
+                slotDrugs[placed[i]] = keyDrugs[bucket.get(i)];
+            }
+        }
+    }
+
+    // A checker that knows no drugs, so every check comes back empty.
+    public static InteractionChecker none() {
+        return NONE;
+    }
+
+    public static InteractionChecker load(Path file) throws IOException {
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return parse(in);
+        }
+    }
+
+    public static InteractionChecker parse(Reader in) throws IOException {
+        List<String[]> declarations = new ArrayList<>();
+        List<Integer> lineNumbers = new ArrayList<>();
+        Map<String, String> aliases = new HashMap<>();
+        BufferedReader lines = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        int lineNumber = 0;
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            if (comment >= 0) line = line.substring(0, comment);
+            if (line.trim().isEmpty()) continue;
+            String[] f = line.split("\\|", -1);
+            for (int i = 0; i < f.length; i++) f[i] = f[i].trim();
+            String kind = f[0].toLowerCase(Locale.ROOT);
+            if (kind.equals("alias") && f.length == 3 && !f[1].isEmpty() && !f[2].isEmpty()) {
+                aliases.put(key(f[1]), key(f[2]));
+            } else if ((kind.equals("class") && f.length >= 3) || (kind.equals("interaction") && f.length == 6)) {
+                declarations.add(f);
+                lineNumbers.add(lineNumber);
+            } else {
+                throw new IOException("Line " + lineNumber + ": expected alias, class or interaction with "
+                        + "'|'-separated fields");
+            }
+        }
+
+        Map<String, Integer> drugs = new LinkedHashMap<>();
+        Map<String, Integer> classIds = new LinkedHashMap<>();
+        TreeMap<Long, Interaction> pairs = new TreeMap<>();
+        List<int[]> memberships = new ArrayList<>();
+        for (int d = 0; d < declarations.size(); d++) {
+            String[] f = declarations.get(d);
+            int line = lineNumbers.get(d);
+            if (f[0].equalsIgnoreCase("class")) {
+                int c = classIds.computeIfAbsent(f[1], n -> classIds.size());
+                for (int i = 2; i < f.length; i++) {
+                    if (!f[i].isEmpty()) memberships.add(new int[] {drug(drugs, aliases, f[i]), c});
+                }
+                continue;
+            }
+            Severity severity;
+            int hours;
+            try {
+                severity = Severity.valueOf(f[3].toUpperCase(Locale.ROOT));
+                hours = Integer.parseInt(f[4]);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Line " + line + ": expected a severity and a number of hours, not '"
+                        + f[3] + "' and '" + f[4] + "'");
+            }
+            if (hours < 0 || f[1].isEmpty() || f[2].isEmpty()) throw new IOException("Line " + line + ": invalid interaction");
+            int a = drug(drugs, aliases, f[1]);
+            int b = drug(drugs, aliases, f[2]);
+            if (a == b) throw new IOException("Line " + line + ": a drug cannot interact with itself");
+            pairs.put(pair(a, b), new Interaction(severity, hours * 60, f[5]));
+        }
+        for (String alias : aliases.keySet()) drug(drugs, aliases, alias);
+
+        String[] names = new String[drugs.size()];
+        String[] keys = new String[drugs.size() + aliases.size()];
+        int[] keyDrugs = new int[keys.length];
+        int k = 0;
+        for (Map.Entry<String, Integer> e : drugs.entrySet()) {
+            names[e.getValue()] = e.getKey();
+            keys[k] = e.getKey();
+            keyDrugs[k++] = e.getValue();
+        }
+        for (Map.Entry<String, String> e : aliases.entrySet()) {
+            if (drugs.containsKey(e.getKey())) continue;
+            keys[k] = e.getKey();
+            keyDrugs[k++] = drugs.get(canonical(aliases, e.getKey()));
+        }
+        String[] classNames = classIds.keySet().toArray(new String[0]);
+        int classWords = (classNames.length + 63) >>> 6;
+        long[] memberBits = new long[names.length * classWords];
+        for (int[] m : memberships) memberBits[m[0] * classWords + (m[1] >>> 6)] |= 1L << m[1];
+        return new InteractionChecker(Arrays.copyOf(keys, k), Arrays.copyOf(keyDrugs, k), names, memberBits,
+                classNames, pairs);
+    }
+
+    public Regimen regimen(Medication[] medications) {
+        Regimen regimen = new Regimen();
+        for (Medication m : medications) regimen.add(m);
+        return regimen;
+    }
+
+    // Every conflict within a regimen, each pair of medications reported once.
+    public List<Finding> review(Medication[] medications, LocalDateTime now) {
+        Regimen regimen = new Regimen();
+        List<Finding> findings = new ArrayList<>();
+        for (Medication m : medications) {
+            findings.addAll(regimen.check(m.getName(), m.getSchedule(), m.getId(), now));
+            regimen.add(m);
+        }
+        return findings;
+    }
+
+    public int drugCount() {
+        return names.length;
+    }
+
+    // The dense id of a medication name: the whole name if the dataset knows it, otherwise the longest run
+    // of leading words it knows, so "Warfarin sodium 5mg" still finds warfarin. -1 when nothing matches.
+    public int drugId(String name) {
+        if (names.length == 0 || name == null) return -1;
+        String key = key(name);
+        while (!key.isEmpty()) {
+            int slot = hash(key, seeds[hash(key, 0) % seeds.length]) % slotKeys.length;
+            if (key.equals(slotKeys[slot])) return slotDrugs[slot];
+            int space = key.lastIndexOf(' ');
+            key = space < 0 ? "" : key.substring(0, space);
+        }
+        return -1;
+    }
+
+    public String drugName(int drug) {
+        return names[drug];
+    }
+
+    private boolean interacts(int a, int b) {
+        return (adjacency[a * words + (b >>> 6)] & (1L << b)) != 0;
+    }
+
+    private String sharedClass(int a, int b) {
+        for (int w = 0; w < classWords; w++) {
+            long shared = memberships[a * classWords + w] & memberships[b * classWords + w];
+            if (shared != 0) return classes[(w << 6) + Long.numberOfTrailingZeros(shared)];
+        }
+        return null;
+    }
+
+    private boolean place(List<Integer> bucket, String[] keys, int seed, int[] placed) {
+        for (int i = 0; i < bucket.size(); i++) {
+            int slot = hash(keys[bucket.get(i)], seed) % slotKeys.length;
+            if (slotKeys[slot] != null) return false;
+            for (int j = 0; j < i; j++) {
+                if (placed[j] == slot) return false;
+            }
+            placed[i] = slot;
+        }
+        return true;
+    }
+
+    // First dose of a within window minutes of a dose of b, between from and until, as {a, b}; null if none.
+    private static long[] clash(Schedule a, Schedule b, long from, long until, int window) {
+        for (int i = a.ceilingOrdinal(from); i < a.size(); i++) {
+            long minute = a.minuteAt(i);
+            if (minute >= until) break;
+            int j = b.ceilingOrdinal(minute - window + 1);
+            if (j < b.size() && b.minuteAt(j) < minute + window) return new long[] {minute, b.minuteAt(j)};
+        }
+        return null;
+    }
+
+    private static int drug(Map<String, Integer> drugs, Map<String, String> aliases, String name) {
+        return drugs.computeIfAbsent(canonical(aliases, key(name)), n -> drugs.size());
+    }
+
+    // Follows aliases of aliases, stopping if they loop.
+    private static String canonical(Map<String, String> aliases, String key) {
+        for (int hops = 0; hops <= aliases.size() && aliases.containsKey(key); hops++) key = aliases.get(key);
+        return key;
+    }
+
+    private static long pair(int a, int b) {
+        return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+    }
+
+    private static String hours(int minutes) {
+        return minutes % 60 == 0 ? minutes / 60 + "h" : minutes + " minutes";
+    }
+
+    private static String key(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        boolean space = false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+            } else {
+                if (space) sb.append(' ');
+                space = false;
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int hash(String key, int seed) {
+        int h = 0x811C9DC5 ^ (seed * 0x9E3779B9);
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h & 0x7FFFFFFF;
+    }
+}
@@ -0,0 +1,661 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+public class Journal {
+    // at is null for changes journaled before they carried a time.
+    public interface Replayer {
+        void medicationAdded(long id, String name, String dosage, Schedule schedule, String instructions, LocalDateTime at);
+        void medicationEdited(long id, String name, String dosage, Schedule schedule, String instructions, LocalDateTime at);
+        void medicationDeleted(long id, LocalDateTime at);
+        void scheduleTaken(long id, LocalDateTime schedule);
+        void scheduleReminded(long id, LocalDateTime schedule);
+        void recordAdded(Record record);
+        void graceWindowsChanged(long id, int overdueAfterMinutes, int missedAfterMinutes);
+    }
+
+    // ADD, EDIT and DELETE are only read, from journals written before changes were timed; RECORD likewise, from
+    // before record times were instants, when they were wall-clock times.
+    private static final byte ADD = 1;
+    private static final byte EDIT = 2;
+    private static final byte DELETE = 3;
+    private static final byte TAKEN = 4;
+    private static final byte REMINDED = 5;
+    private static final byte RECORD = 6;
+    private static final byte ADDED_AT = 7;
+    private static final byte EDITED_AT = 8;
+    private static final byte DELETED_AT = 9;
+    private static final byte GRACE = 10;
+    // First entry of a journal and of a snapshot: the journal's generation, and the generation a snapshot covers.
+    private static final byte GENERATION = 11;
+    private static final byte COVERS = 12;
+    private static final byte RECORD_AT = 13;
+    private static final long UNKNOWN_TIME = Long.MIN_VALUE;
+
+    private static final byte FIXED_SCHEDULE = 0;
+    private static final byte RECURRING_SCHEDULE = 1;
+
+    private static final byte REMINDER_RECORD = 1;
+    // MEDICATION_RECORD is only read, from journals written before intakes carried their schedule minute.
+    private static final byte MEDICATION_RECORD = 2;
+    private static final byte FEEDBACK_RECORD = 3;
+    private static final byte INTAKE_RECORD = 4;
+
+    // Every entry is framed as [payload length][crc32 of payload][payload]; a zero length marks the end.
+    private static final int HEADER = 8;
+    private static final int MAP_INITIAL = 64 * 1024;
+    private static final int MAP_CHUNK = 4 << 20;
+
+    // One committer serves every open journal, so a process with many patients does not hold a thread per file.
+    private static final ScheduledExecutorService COMMITTER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "journal-commit");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Path snapshotFile;
+    private final int snapshotEvery;
+    private final ScheduledFuture<?> commitTask;
+    // Told about entries skipped on reading and about writes that failed; the journal itself never prints.
+    private final Consumer<String> warnings;
+
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private ByteBuffer entry = ByteBuffer.allocate(1024);
+    private byte[] scratch = new byte[256];
+    private final CRC32 crc = new CRC32();
+    private int entriesSinceSnapshot;
+    private long generation;
+    private boolean dirty;
+    private boolean closed;
+
+    public Journal(Path journalFile, int snapshotEvery, long commitIntervalMillis) throws IOException {
+        this(journalFile, snapshotEvery, commitIntervalMillis, w -> { });
+    }
+
+    public Journal(Path journalFile, int snapshotEvery, long commitIntervalMillis, Consumer<String> warnings)
+            throws IOException {
+        this.warnings = warnings;
+        this.snapshotFile = journalFile.resolveSibling(journalFile.getFileName() + ".snapshot");
+        this.snapshotEvery = snapshotEvery;
+        channel = FileChannel.open(journalFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, mapSize(channel.size()));
+        entriesSinceSnapshot = readEntries(map, null, null);
+        if (map.remaining() >= 4 && map.getInt(map.position()) != 0) {
+            zero(map.position(), map.limit());
+        }
+        // Journals written before generations were kept count as generation 0.
+        ByteBuffer written = map.duplicate();
+        written.position(0).limit(map.position());
+        generation = firstValue(written, GENERATION, 0);
+        if (map.position() == 0) startGeneration(snapshotGeneration() + 1);
+
+        commitTask = COMMITTER.scheduleWithFixedDelay(this::groupCommit,
+                commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // A journal the snapshot already covers is skipped: the snapshot was installed but the journal not yet cleared.
+    // Wall-clock record times from older journals are taken to be in the zone.
+    public synchronized void replay(Replayer replayer, ZoneId zone) throws IOException {
+        long covered = -1;
+        if (Files.exists(snapshotFile)) {
+            try (FileChannel snapshot = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+                ByteBuffer entries = snapshot.map(FileChannel.MapMode.READ_ONLY, 0, snapshot.size());
+                covered = firstValue(entries, COVERS, -1);
+                readEntries(entries, replayer, zone);
+            }
+        }
+        ByteBuffer journal = map.duplicate();
+        journal.position(0).limit(map.position());
+        if (firstValue(journal, GENERATION, 0) <= covered) return;
+        readEntries(journal, replayer, zone);
+    }
+
+    public void medicationAdded(Medication m, LocalDateTime at) {
+        append(ADDED_AT, m, at);
+    }
+
+    public void medicationEdited(Medication m, LocalDateTime at) {
+        append(EDITED_AT, m, at);
+    }
+
+    public synchronized void medicationDeleted(long id, LocalDateTime at) {
+        entry.clear();
+        entry.put(DELETED_AT);
+        putVarLong(entry, id);
+        putVarLong(entry, toSecond(at));
+        commitEntry();
+    }
+
+    public synchronized void scheduleTaken(long id, LocalDateTime schedule) {
+        scheduleEntry(TAKEN, id, schedule);
+    }
+
+    public synchronized void scheduleReminded(long id, LocalDateTime schedule) {
+        scheduleEntry(REMINDED, id, schedule);
+    }
+
+    public synchronized void graceWindowsChanged(Medication m) {
+        entry.clear();
+        putGrace(entry, m);
+        commitEntry();
+    }
+
+    public synchronized void recordAdded(Record r) {
+        reserve(r);
+        entry.clear();
+        entry.put(RECORD_AT);
+        putRecord(entry, r);
+        commitEntry();
+    }
+
+    public synchronized boolean snapshotDue() {
+        return entriesSinceSnapshot >= snapshotEvery;
+    }
+
+    // Callers must stop mutating state while the snapshot is taken, otherwise entries can be lost.
+    // Medications are written as their change history, so replaying the snapshot rebuilds both.
+    public synchronized void snapshot(MedicationHistory history, Medication[] medications, RecordLog records) {
+        if (closed) return;
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            entry.clear();
+            entry.put(COVERS);
+            putVarLong(entry, generation);
+            frame(buffer, out);
+            IOException[] failure = new IOException[1];
+            history.forEach(v -> {
+                if (failure[0] != null) return;
+                reserve(v.getName(), v.getDosage(), v.getInstructions(), v.getSchedule());
+                entry.clear();
+                if (v.isDeleted()) {
+                    entry.put(DELETED_AT);
+                    putVarLong(entry, v.getMedicationId());
+                    putVarLong(entry, toSecond(v.getTime()));
+                } else {
+                    putMedication(entry, v.getChange() == MedicationHistory.Change.ADDED ? ADDED_AT : EDITED_AT,
+                            v.getMedicationId(), v.getTime(), v.getName(), v.getDosage(), v.getInstructions(), v.getSchedule());
+                }
+                try {
+                    frame(buffer, out);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) throw failure[0];
+            for (Medication m : medications) {
+                if (m.getOverdueAfterMinutes() != Medication.DEFAULT_OVERDUE_MINUTES
+                        || m.getMissedAfterMinutes() != Medication.DEFAULT_MISSED_MINUTES) {
+                    entry.clear();
+                    putGrace(entry, m);
+                    frame(buffer, out);
+                }
+                for (LocalDateTime schedule : m.getTakenSchedules()) {
+                    entry.clear();
+                    putSchedule(entry, TAKEN, m.getId(), Medication.toEpochMinute(schedule));
+                    frame(buffer, out);
+                }
+                for (LocalDateTime schedule : m.getRemindedSchedules()) {
+                    entry.clear();
+                    putSchedule(entry, REMINDED, m.getId(), Medication.toEpochMinute(schedule));
+                    frame(buffer, out);
+                }
+            }
+            records.forEach((r, i) -> {
+                if (failure[0] != null) return;
+                reserve(r);
+                entry.clear();
+                entry.put(RECORD_AT);
+                putRecord(entry, r);
+                try {
+                    frame(buffer, out);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) throw failure[0];
+            buffer.putInt(0).flip();
+            while (buffer.hasRemaining()) out.write(buffer);
+            out.force(true);
+        } catch (IOException e) {
+            warnings.accept("Unable to write journal snapshot: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            zero(0, map.position());
+            map.position(0);
+            startGeneration(generation + 1);
+            map.force();
+            entriesSinceSnapshot = 0;
+            dirty = false;
+        } catch (IOException e) {
+            warnings.accept("Unable to install journal snapshot: " + e.getMessage());
+        }
+    }
+
+    public synchronized void sync() {
+        if (closed || !dirty) return;
+        map.force();
+        dirty = false;
+    }
+
+    public synchronized void close() {
+        if (closed) return;
+        sync();
+        closed = true;
+        commitTask.cancel(false);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            warnings.accept("Unable to close journal: " + e.getMessage());
+        }
+    }
+
+    // Appends only touch the mapping; one force per interval makes every entry written since durable.
+    private void groupCommit() {
+        MappedByteBuffer pending;
+        synchronized (this) {
+            if (closed || !dirty) return;
+            dirty = false;
+            pending = map;
+        }
+        pending.force();
+    }
+
+    private synchronized void append(byte op, Medication m, LocalDateTime at) {
+        Schedule schedule = m.getSchedule();
+        reserve(m.getName(), m.getDosage(), m.getInstructions(), schedule);
+        entry.clear();
+        putMedication(entry, op, m.getId(), at, m.getName(), m.getDosage(), m.getInstructions(), schedule);
+        commitEntry();
+    }
+
+    private void startGeneration(long next) {
+        generation = next;
+        entry.clear();
+        entry.put(GENERATION);
+        putVarLong(entry, next);
+        commitEntry();
+    }
+
+    private long snapshotGeneration() throws IOException {
+        if (!Files.exists(snapshotFile)) return -1;
+        try (FileChannel snapshot = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            return firstValue(snapshot.map(FileChannel.MapMode.READ_ONLY, 0, snapshot.size()), COVERS, -1);
+        }
+    }
+
+    // The value of the first entry if it is of the given type, without moving the buffer.
+    private long firstValue(ByteBuffer in, byte op, long otherwise) {
+        if (in.remaining() < HEADER + 2) return otherwise;
+        int length = in.getInt(in.position());
+        if (length < 2 || length > in.remaining() - HEADER || in.get(in.position() + HEADER) != op) return otherwise;
+        ByteBuffer payload = in.duplicate();
+        payload.position(in.position() + HEADER + 1);
+        return getVarLong(payload);
+    }
+
+    private void scheduleEntry(byte op, long id, LocalDateTime schedule) {
+        entry.clear();
+        putSchedule(entry, op, id, Medication.toEpochMinute(schedule));
+        commitEntry();
+    }
+
+    private void commitEntry() {
+        if (closed) return;
+        entry.flip();
+        int needed = HEADER + entry.remaining() + 4;
+        try {
+            if (map.remaining() < needed) {
+                int position = map.position();
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, mapSize(Math.max(position + needed, map.capacity() + 1L)));
+                map.position(position);
+            }
+        } catch (IOException e) {
+            warnings.accept("Unable to grow journal: " + e.getMessage());
+            return;
+        }
+        int start = map.position();
+        crc.reset();
+        crc.update(entry.duplicate());
+        map.putInt(start + 4, (int) crc.getValue());
+        map.position(start + HEADER);
+        map.put(entry);
+        // The length goes in last so a torn write reads back as the end of the journal.
+        map.putInt(start, map.position() - start - HEADER);
+        entriesSinceSnapshot++;
+        dirty = true;
+    }
+
+    private void frame(ByteBuffer buffer, FileChannel out) throws IOException {
+        entry.flip();
+        int needed = HEADER + entry.remaining() + 4;
+        if (buffer.remaining() < needed) {
+            buffer.flip();
+            while (buffer.hasRemaining()) out.write(buffer);
+            buffer.clear();
+        }
+        crc.reset();
+        crc.update(entry.duplicate());
+        if (buffer.remaining() < needed) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER).putInt(entry.remaining()).putInt((int) crc.getValue());
+            header.flip();
+            while (header.hasRemaining()) out.write(header);
+            while (entry.hasRemaining()) out.write(entry);
+            return;
+        }
+        buffer.putInt(entry.remaining());
+        buffer.putInt((int) crc.getValue());
+        buffer.put(entry);
+    }
+
+    private void reserve(String name, String dosage, String instructions, Schedule schedule) {
+        int values = schedule instanceof RecurringSchedule ? 8 + ((RecurringSchedule) schedule).getOffsets().length : schedule.size();
+        reserve(name.length() + dosage.length() + instructions.length(), values);
+    }
+
+    private void reserve(Record r) {
+        int chars = r.getDescription().length();
+        if (r instanceof MedicationRecord) {
+            MedicationRecord intake = (MedicationRecord) r;
+            chars += intake.getMedicationName().length() + intake.getDosage().length();
+        } else if (r instanceof FeedbackRecord) {
+            chars += ((FeedbackRecord) r).getFeedback().length();
+        }
+        reserve(chars, 0);
+    }
+
+    private void reserve(int chars, int schedules) {
+        long worstCase = 64L + 3L * chars + 10L * schedules;
+        if (worstCase > entry.capacity()) entry = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE - 8, worstCase * 2));
+    }
+
+    private void zero(int from, int to) {
+        ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer target = map.duplicate();
+        target.position(from).limit(to);
+        while (target.hasRemaining()) {
+            zeros.clear().limit(Math.min(zeros.capacity(), target.remaining()));
+            target.put(zeros);
+        }
+    }
+
+    private int readEntries(ByteBuffer in, Replayer replayer, ZoneId zone) {
+        int count = 0;
+        while (in.remaining() >= HEADER) {
+            int start = in.position();
+            int length = in.getInt();
+            int checksum = in.getInt();
+            if (length <= 0 || length > in.remaining()) {
+                in.position(start);
+                break;
+            }
+            ByteBuffer payload = in.slice();
+            payload.limit(length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                warnings.accept("Journal entry at offset " + start + " is corrupt; ignoring the rest.");
+                in.position(start);
+                break;
+            }
+            if (replayer != null) {
+                try {
+                    apply(payload, replayer, zone);
+                } catch (BufferUnderflowException | IllegalArgumentException e) {
+                    warnings.accept("Journal entry at offset " + start + " is unreadable; skipping it.");
+                }
+            }
+            in.position(start + HEADER + length);
+            count++;
+        }
+        return count;
+    }
+
+    private void apply(ByteBuffer in, Replayer replayer, ZoneId zone) {
+        byte op = in.get();
+        switch (op) {
+            case ADD:
+            case EDIT:
+            case ADDED_AT:
+            case EDITED_AT: {
+                long id = getVarLong(in);
+                LocalDateTime at = op == ADD || op == EDIT ? null : fromSecond(getVarLong(in));
+                String name = getString(in);
+                String dosage = getString(in);
+                String instructions = getString(in);
+                Schedule schedule = getSchedule(in);
+                if (op == ADD || op == ADDED_AT) replayer.medicationAdded(id, name, dosage, schedule, instructions, at);
+                else replayer.medicationEdited(id, name, dosage, schedule, instructions, at);
+                break;
+            }
+            case DELETE:
+                replayer.medicationDeleted(getVarLong(in), null);
+                break;
+            case DELETED_AT:
+                replayer.medicationDeleted(getVarLong(in), fromSecond(getVarLong(in)));
+                break;
+            case TAKEN:
+                replayer.scheduleTaken(getVarLong(in), Medication.fromEpochMinute(getVarLong(in)));
+                break;
+            case REMINDED:
+                replayer.scheduleReminded(getVarLong(in), Medication.fromEpochMinute(getVarLong(in)));
+                break;
+            case RECORD:
+                replayer.recordAdded(getRecord(in, zone));
+                break;
+            case RECORD_AT:
+                replayer.recordAdded(getRecord(in, null));
+                break;
+            case GRACE:
+                replayer.graceWindowsChanged(getVarLong(in), (int) getVarLong(in), (int) getVarLong(in));
+                break;
+            case GENERATION:
+            case COVERS:
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown journal entry type " + op);
+        }
+    }
+
+    private void putMedication(ByteBuffer out, byte op, long id, LocalDateTime at, String name, String dosage,
+            String instructions, Schedule schedule) {
+        out.put(op);
+        putVarLong(out, id);
+        putVarLong(out, toSecond(at));
+        putString(out, name);
+        putString(out, dosage);
+        putString(out, instructions);
+        if (schedule instanceof RecurringSchedule) {
+            RecurringSchedule rule = (RecurringSchedule) schedule;
+            out.put(RECURRING_SCHEDULE);
+            putVarLong(out, rule.getAnchor());
+            putVarLong(out, rule.getPeriod());
+            putVarLong(out, rule.getFrom());
+            putVarLong(out, rule.getUntil());
+            int[] offsets = rule.getOffsets();
+            putVarLong(out, offsets.length);
+            for (int offset : offsets) putVarLong(out, offset);
+            return;
+        }
+        out.put(FIXED_SCHEDULE);
+        putVarLong(out, schedule.size());
+        long previous = 0;
+        for (int i = 0; i < schedule.size(); i++) {
+            long minute = schedule.minuteAt(i);
+            putVarLong(out, minute - previous);
+            previous = minute;
+        }
+    }
+
+    private Schedule getSchedule(ByteBuffer in) {
+        byte kind = in.get();
+        if (kind == RECURRING_SCHEDULE) {
+            long anchor = getVarLong(in);
+            int period = (int) getVarLong(in);
+            long from = getVarLong(in);
+            long until = getVarLong(in);
+            int[] offsets = new int[(int) getVarLong(in)];
+            for (int i = 0; i < offsets.length; i++) offsets[i] = (int) getVarLong(in);
+            return new RecurringSchedule(anchor, period, offsets, from, until);
+        }
+        if (kind != FIXED_SCHEDULE) throw new IllegalArgumentException("Unknown schedule kind " + kind);
+        long[] minutes = new long[(int) getVarLong(in)];
+        long minute = 0;
+        for (int i = 0; i < minutes.length; i++) {
+            minute += getVarLong(in);
+            minutes[i] = minute;
+        }
+        return new FixedSchedule(minutes);
+    }
+
+    private void putSchedule(ByteBuffer out, byte op, long id, long minute) {
+        out.put(op);
+        putVarLong(out, id);
+        putVarLong(out, minute);
+    }
+
+    private void putGrace(ByteBuffer out, Medication m) {
+        out.put(GRACE);
+        putVarLong(out, m.getId());
+        putVarLong(out, m.getOverdueAfterMinutes());
+        putVarLong(out, m.getMissedAfterMinutes());
+    }
+
+    private void putRecord(ByteBuffer out, Record r) {
+        if (r instanceof MedicationRecord) {
+            MedicationRecord intake = (MedicationRecord) r;
+            out.put(INTAKE_RECORD);
+            putRecordHeader(out, r);
+            putVarLong(out, intake.getMedicationId());
+            putString(out, intake.getMedicationName());
+            putString(out, intake.getDosage());
+            putVarLong(out, intake.getScheduleMinute());
+        } else if (r instanceof FeedbackRecord) {
+            out.put(FEEDBACK_RECORD);
+            putRecordHeader(out, r);
+            putString(out, ((FeedbackRecord) r).getFeedback());
+        } else {
+            out.put(REMINDER_RECORD);
+            putRecordHeader(out, r);
+        }
+    }
+
+    private void putRecordHeader(ByteBuffer out, Record r) {
+        putVarLong(out, r.getEpochSecond());
+        putString(out, r.getDescription());
+    }
+
+    // A zone means the entry holds a wall-clock time in it rather than an instant.
+    private Record getRecord(ByteBuffer in, ZoneId wallClockZone) {
+        byte type = in.get();
+        long dateTime = getVarLong(in);
+        if (wallClockZone != null) {
+            dateTime = Timestamps.toInstant(Timestamps.fromEpochSecond(dateTime), wallClockZone).getEpochSecond();
+        }
+        String description = getString(in);
+        switch (type) {
+            case MEDICATION_RECORD: {
+                long id = getVarLong(in);
+                String name = getString(in);
+                return new MedicationRecord(dateTime, description, id, name, getString(in),
+                        legacyScheduleMinute(description));
+            }
+            case INTAKE_RECORD: {
+                long id = getVarLong(in);
+                String name = getString(in);
+                String dosage = getString(in);
+                return new MedicationRecord(dateTime, description, id, name, dosage, getVarLong(in));
+            }
+            case FEEDBACK_RECORD:
+                return new FeedbackRecord(dateTime, description, getString(in));
+            case REMINDER_RECORD:
+                return new ReminderRecord(dateTime, description);
+            default:
+                throw new IllegalArgumentException("Unknown record type " + type);
+        }
+    }
+
+    // Intakes journaled before the schedule minute was kept have it only at the end of their description, as
+    // " at yyyy-MM-dd HH:mm"; it is read from there once, on the way in.
+    private static long legacyScheduleMinute(String description) {
+        int length = description.length();
+        if (length < 20 || !description.startsWith(" at ", length - 20)) return MedicationRecord.UNKNOWN_SCHEDULE;
+        try {
+            return FixedSchedule.parseMinute(description, length - 16, length);
+        } catch (InvalidMedicationException e) {
+            return MedicationRecord.UNKNOWN_SCHEDULE;
+        }
+    }
+
+    private static long toSecond(LocalDateTime at) {
+        return at == null ? UNKNOWN_TIME : at.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    private static LocalDateTime fromSecond(long second) {
+        return second == UNKNOWN_TIME ? null : LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC);
+    }
+
+    private static void putVarLong(ByteBuffer out, long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void putString(ByteBuffer out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        putVarLong(out, bytes.length);
+        out.put(bytes);
+    }
+
+    private String getString(ByteBuffer in) {
+        int length = (int) getVarLong(in);
+        if (length < 0 || length > in.remaining()) throw new IllegalArgumentException("Bad string length " + length);
+        if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+        in.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Small journals start small and double; past one chunk they grow a chunk at a time.
+    private static long mapSize(long size) {
+        long mapped = MAP_INITIAL;
+        while (mapped < size && mapped < MAP_CHUNK) mapped *= 2;
+        if (mapped >= size) return mapped;
+        return (size + MAP_CHUNK - 1) / MAP_CHUNK * MAP_CHUNK;
+    }
+}
@@ -0,0 +1,718 @@
+import com.sun.management.GcInfo;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Usage: java LoadGenerator [key=value ...]
+//   patients=20 medications=2000 rate=200 threads=4 duration=10m report=1m interval=5 dir=<scratch directory>
+//   mix=add:4,edit:4,delete:3,intake:40,feedback:9,view:40
+// Soak test. Every simulated patient gets a MediCareManager console fed scripted answers, on a journaled store of
+// its own; all patients share one reminder thread and one missed-dose monitor, as in PatientRegistry. Medications
+// recur every 1 to `interval` minutes, so reminders fire all the time. Commands are issued at a fixed rate and
+// their latency is measured from when they were due, not from when a worker got to them.
+// Reports throughput, tail latency, reminder lateness, GC time and heap after GC every `report`, then checks that
+// no reminder was delivered twice or lost, no acknowledged intake or history record was lost, and the journals
+// restore what was acknowledged. Exits with status 1 if any check fails.
+public class LoadGenerator {
+    private static final int RECORDS_PER_PATIENT = 200;
+    private static final long INPUT_TIMEOUT_SECONDS = 30;
+    private static final long DRAIN_MILLIS = 10_000;
+    private static final int ERRORS_SHOWN = 5;
+    private static final String REMINDER = " Reminder: Time to take ";
+    private static final String ATTENTION = " Attention: ";
+    private static final DateTimeFormatter MINUTE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+    private enum Op {
+        ADD, EDIT, DELETE, INTAKE, FEEDBACK, VIEW
+    }
+
+    private static final int ALL = Op.values().length;
+
+    private static final Metrics.Counter RECORDS_ADDED = Metrics.global().counter("medicare_records_added_total",
+            "History records added");
+    private static final Metrics.Counter RECORDS_DROPPED = Metrics.global().counter("medicare_records_dropped_total",
+            "Evicted history records that could not be archived and were lost");
+
+    // One medication as the patient saw it acknowledged. Minutes are epoch minutes.
+    private static final class Tracked {
+        private final String name;
+        private volatile long id;
+        private final BitSet reminded = new BitSet();
+        private final BitSet taken = new BitSet();
+        private long checkFrom;
+        private long resetFrom = Long.MAX_VALUE;
+        private long resetTo = Long.MIN_VALUE;
+        private volatile long deletedAt = Long.MAX_VALUE;
+
+        Tracked(String name) {
+            this.name = name;
+        }
+
+        synchronized void added(long id, long at) {
+            this.id = id;
+            checkFrom = at + 1;
+        }
+
+        // False if this minute was already reminded under the current schedule.
+        synchronized boolean remind(long minute, long base) {
+            int bit = (int) (minute - base);
+            if (bit < 0) return true;
+            if (!reminded.get(bit)) {
+                reminded.set(bit);
+                return true;
+            }
+            return minute >= resetFrom && minute <= resetTo;
+        }
+
+        // A new schedule starts over with its current minute, which may be reminded again, late, and
+        // before edit() has even returned.
+        synchronized void rescheduling(long from) {
+            resetFrom = from;
+            resetTo = Long.MAX_VALUE;
+            checkFrom = Long.MAX_VALUE;
+        }
+
+        synchronized void rescheduled(long from, long to, long base) {
+            reminded.clear((int) Math.max(0, from - base), Integer.MAX_VALUE);
+            taken.clear();
+            resetFrom = from;
+            resetTo = to;
+            checkFrom = to + 1;
+        }
+
+        synchronized long checkFrom() {
+            return id == 0 ? Long.MAX_VALUE : checkFrom;
+        }
+
+        synchronized void took(long minute, long base) {
+            if (minute >= base) taken.set((int) (minute - base));
+        }
+    }
+
+    // Answers are handed to the console one line per read, so a command that asks for fewer answers
+    // than were scripted leaves the rest here, where it shows, instead of in the Scanner's buffer.
+    private static final class ScriptedInput implements Readable {
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        private String pending = "";
+
+        void answer(String... answers) {
+            for (String a : answers) lines.add(a + "\n");
+        }
+
+        boolean isDrained() {
+            return pending.isEmpty() && lines.isEmpty();
+        }
+
+        public int read(CharBuffer cb) throws IOException {
+            if (pending.isEmpty()) {
+                try {
+                    pending = lines.poll(INPUT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (pending == null) {
+                    pending = "";
+                    throw new IOException("The console asked for more answers than were scripted");
+                }
+            }
+            int n = Math.min(cb.remaining(), pending.length());
+            cb.append(pending, 0, n);
+            pending = pending.substring(n);
+            return n;
+        }
+    }
+
+    private final Map<String, Tracked> byName = new ConcurrentHashMap<>();
+    private final long base = Medication.toEpochMinute(LocalDateTime.now()) - 1;
+    private final LongAdder reminders = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder afterDelete = new LongAdder();
+    private final LongAdder unknown = new LongAdder();
+    private final LongAdder escalated = new LongAdder();
+    private final Metrics.Histogram lateness = new Metrics.Histogram();
+    private volatile Metrics.Histogram intervalLateness = new Metrics.Histogram();
+
+    // Console output for one patient: reminders are checked as they arrive, the rest is kept for the
+    // command in progress to look at.
+    private final class Console implements OutputSink {
+        private final StringBuilder text = new StringBuilder();
+
+        public void print(CharSequence s) {
+            String t = s.toString();
+            int r = t.indexOf(REMINDER);
+            if (r >= 0) {
+                reminded(t, r + REMINDER.length());
+                return;
+            }
+            int a = t.indexOf(ATTENTION);
+            if (a >= 0) {
+                int from = a + ATTENTION.length();
+                escalated.add(Long.parseLong(t.substring(from, t.indexOf(' ', from))));
+            }
+            synchronized (this) {
+                text.append(t);
+            }
+        }
+
+        synchronized String take() {
+            String s = text.toString();
+            text.setLength(0);
+            return s;
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+
+    private final class Patient {
+        private final Path dir;
+        private final String prefix;
+        private final ScriptedInput input = new ScriptedInput();
+        private final Console out = new Console();
+        private final MediCareService service;
+        private final MediCareManager manager;
+        // The rest is only touched while holding the patient, like one person at one console.
+        private final List<Tracked> live = new ArrayList<>();
+        private int nextName;
+        private boolean outOfStep;
+
+        Patient(int number, Path dir, ReminderScheduler scheduler, MissedDoseMonitor monitor, ExecutorService pool) {
+            this.dir = dir;
+            prefix = "P" + number + " M";
+            service = open(dir, scheduler, monitor, pool);
+            manager = new MediCareManager(new Scanner(input), service, out);
+        }
+
+        void seed(int count, Random rnd) throws InvalidMedicationException {
+            List<MediCareService.NewMedication> batch = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = prefix + nextName++;
+                byName.put(name, new Tracked(name));
+                batch.add(new MediCareService.NewMedication(name, dosage(rnd), service.parseSchedule(schedule(rnd)), "With water"));
+            }
+            long at = now();
+            for (MediCareService.Result<Medication> r : service.addMedications(batch)) {
+                if (!r.isOk()) throw new InvalidMedicationException(r.getError());
+                track(r.getValue().getName(), r.getValue().getId(), at);
+            }
+        }
+
+        private void track(String name, long id, long at) {
+            Tracked t = byName.get(name);
+            t.added(id, at);
+            live.add(t);
+        }
+
+        // Returns null on success, otherwise what the console said instead.
+        String run(Op op, Random rnd) {
+            if (live.isEmpty() && op != Op.FEEDBACK && op != Op.VIEW) op = Op.ADD;
+            Tracked t = live.isEmpty() ? null : live.get(rnd.nextInt(live.size()));
+            out.take();
+            String result;
+            switch (op) {
+                case ADD: {
+                    // Known before it is added: its first reminder can arrive before add() returns.
+                    String name = prefix + nextName++;
+                    byName.put(name, new Tracked(name));
+                    input.answer(name, dosage(rnd), schedule(rnd), "With water");
+                    manager.add();
+                    result = expect(out.take(), "Medication added successfully.");
+                    if (result == null) {
+                        track(name, service.findMedicationsByName(name).get(0).getId(), now());
+                    } else {
+                        byName.remove(name);
+                    }
+                    break;
+                }
+                case EDIT: {
+                    boolean reschedule = rnd.nextInt(4) == 0;
+                    long from = now();
+                    if (reschedule) t.rescheduling(from);
+                    input.answer(Long.toString(t.id), "", dosage(rnd), reschedule ? schedule(rnd) : "", "");
+                    manager.edit();
+                    result = expect(out.take(), "Medication has been updated.");
+                    if (reschedule) t.rescheduled(from, now(), base);
+                    break;
+                }
+                case DELETE:
+                    input.answer(Long.toString(t.id));
+                    manager.delete();
+                    result = expect(out.take(), "Medication has been deleted.");
+                    if (result == null) {
+                        t.deletedAt = now();
+                        live.remove(t);
+                    }
+                    break;
+                case INTAKE: {
+                    int choices = service.selectableSchedules(service.findMedication(t.id)).size();
+                    if (choices == 0) {
+                        input.answer(Long.toString(t.id));
+                    } else {
+                        input.answer(Long.toString(t.id), Integer.toString(1 + rnd.nextInt(choices)), "Taken");
+                    }
+                    manager.logMedicationIntake();
+                    String logged = "Medication intake logged for " + t.name + " at ";
+                    String said = out.take();
+                    result = expect(said, choices == 0 ? "No schedules" : logged);
+                    if (result == null && choices > 0) {
+                        int at = said.indexOf(logged) + logged.length();
+                        t.took(Medication.toEpochMinute(LocalDateTime.parse(said.substring(at, at + 16), MINUTE)), base);
+                    }
+                    break;
+                }
+                case FEEDBACK:
+                    input.answer("Fine", "None");
+                    manager.addFeedback();
+                    result = expect(out.take(), "Feedback recorded.");
+                    break;
+                default:
+                    view(t, rnd);
+                    result = null;
+            }
+            if (!input.isDrained()) outOfStep = true;
+            return result;
+        }
+
+        private void view(Tracked t, Random rnd) {
+            switch (rnd.nextInt(t == null ? 4 : 6)) {
+                case 0:
+                    manager.listMedications();
+                    break;
+                case 1:
+                    manager.showReminders();
+                    break;
+                case 2:
+                    manager.viewHistory();
+                    break;
+                case 3:
+                    manager.viewAdherence();
+                    break;
+                case 4:
+                    input.answer(t.name.substring(0, t.name.length() - 1));
+                    manager.findMedication();
+                    break;
+                default:
+                    input.answer(Long.toString(t.id));
+                    manager.viewMedicationChanges();
+            }
+        }
+
+        private String expect(String said, String marker) {
+            if (said.contains(marker)) return null;
+            String[] lines = said.trim().split("\\R");
+            return lines.length == 0 ? "(nothing)" : lines[lines.length - 1];
+        }
+    }
+
+    private final Config config;
+    private final List<Patient> patients = new ArrayList<>();
+    private final Op[] ops;
+    private final Metrics.Histogram[] latency = new Metrics.Histogram[Op.values().length];
+    private volatile Metrics.Histogram[] intervalLatency = histograms();
+    private final LongAdder[] failures = new LongAdder[Op.values().length];
+    private final Map<String, Integer> failureSamples = new LinkedHashMap<>();
+
+    private LoadGenerator(Config config) {
+        this.config = config;
+        ops = config.weightedOps();
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new Metrics.Histogram();
+            failures[i] = new LongAdder();
+        }
+    }
+
+    private static final class Config {
+        int patients = 20;
+        int medications = 2000;
+        double rate = 200;
+        int threads = 4;
+        long durationMillis = 10 * 60_000;
+        long reportMillis = 60_000;
+        int interval = 5;
+        Path dir;
+        Map<Op, Integer> mix = new LinkedHashMap<>();
+
+        Config(String[] args) throws IOException {
+            parseMix("add:4,edit:4,delete:3,intake:40,feedback:9,view:40");
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) throw new IllegalArgumentException("Expected key=value: " + arg);
+                String key = arg.substring(0, eq);
+                String value = arg.substring(eq + 1);
+                switch (key) {
+                    case "patients": patients = Integer.parseInt(value); break;
+                    case "medications": medications = Integer.parseInt(value); break;
+                    case "rate": rate = Double.parseDouble(value); break;
+                    case "threads": threads = Integer.parseInt(value); break;
+                    case "duration": durationMillis = millis(value); break;
+                    case "report": reportMillis = millis(value); break;
+                    case "interval": interval = Integer.parseInt(value); break;
+                    case "dir": dir = Paths.get(value); break;
+                    case "mix": parseMix(value); break;
+                    default: throw new IllegalArgumentException("Unknown option: " + key);
+                }
+            }
+            if (patients < 1 || threads < 1 || rate <= 0 || interval < 1) {
+                throw new IllegalArgumentException("patients, threads, rate and interval must be positive");
+            }
+            if (dir == null) dir = Files.createTempDirectory("medicare-soak");
+        }
+
+        private void parseMix(String value) {
+            mix.clear();
+            for (Op op : Op.values()) mix.put(op, 0);
+            for (String part : value.split(",")) {
+                String[] kv = part.trim().split(":");
+                mix.put(Op.valueOf(kv[0].trim().toUpperCase()), Integer.parseInt(kv[1].trim()));
+            }
+        }
+
+        Op[] weightedOps() {
+            List<Op> ops = new ArrayList<>();
+            for (Map.Entry<Op, Integer> e : mix.entrySet()) {
+                for (int i = 0; i < e.getValue(); i++) ops.add(e.getKey());
+            }
+            if (ops.isEmpty()) throw new IllegalArgumentException("The mix is empty");
+            return ops.toArray(new Op[0]);
+        }
+
+        // 90s, 10m, 2h, or plain milliseconds.
+        private static long millis(String value) {
+            char unit = value.charAt(value.length() - 1);
+            long unitMillis = unit == 's' ? 1000 : unit == 'm' ? 60_000 : unit == 'h' ? 3_600_000 : 1;
+            return Long.parseLong(unitMillis == 1 ? value : value.substring(0, value.length() - 1)) * unitMillis;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = new Config(args);
+        System.exit(new LoadGenerator(config).run() ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "soak-dispatch-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        ReminderScheduler scheduler = new ReminderScheduler(pool);
+        MissedDoseMonitor monitor = new MissedDoseMonitor(pool);
+        long addedBefore = RECORDS_ADDED.get();
+        long droppedBefore = RECORDS_DROPPED.get();
+
+        Random rnd = new Random(1);
+        for (int i = 0; i < config.patients; i++) {
+            Path dir = Files.createDirectories(config.dir.resolve("patient-" + i));
+            Patient p = new Patient(i, dir, scheduler, monitor, pool);
+            p.seed(config.medications / config.patients + (i < config.medications % config.patients ? 1 : 0), rnd);
+            patients.add(p);
+        }
+        System.out.printf("%d patients, %d medications recurring every 1-%d min, %.0f commands/s on %d threads for %s; data in %s%n",
+                config.patients, config.medications, config.interval, config.rate, config.threads,
+                duration(config.durationMillis), config.dir);
+
+        long start = System.nanoTime();
+        long deadline = start + config.durationMillis * 1_000_000;
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < config.threads; i++) {
+            long seed = i;
+            Thread t = new Thread(() -> work(start, deadline, new Random(seed)), "soak-worker-" + i);
+            workers.add(t);
+            t.start();
+        }
+        report(start, deadline);
+        for (Thread t : workers) t.join();
+
+        long end = now();
+        Thread.sleep(DRAIN_MILLIS);
+        return verify(end - 1, scheduler, monitor, pool, addedBefore, droppedBefore);
+    }
+
+    private void work(long start, long deadline, Random rnd) {
+        long interval = (long) (config.threads * 1e9 / config.rate);
+        long next = start + rnd.nextInt((int) Math.max(1, Math.min(interval, Integer.MAX_VALUE)));
+        while (next < deadline) {
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+            Op op = ops[rnd.nextInt(ops.length)];
+            Patient p = patients.get(rnd.nextInt(patients.size()));
+            String failure;
+            synchronized (p) {
+                failure = p.outOfStep ? "console out of step" : p.run(op, rnd);
+            }
+            long nanos = System.nanoTime() - next;
+            latency[op.ordinal()].record(nanos);
+            Metrics.Histogram[] window = intervalLatency;
+            window[op.ordinal()].record(nanos);
+            window[ALL].record(nanos);
+            if (failure != null) {
+                failures[op.ordinal()].increment();
+                synchronized (failureSamples) {
+                    failureSamples.merge(op + ": " + failure, 1, Integer::sum);
+                }
+            }
+            next += interval;
+        }
+    }
+
+    private void reminded(String text, int from) {
+        int paren = text.indexOf(" (", from);
+        int at = text.lastIndexOf(" at ");
+        String name = text.substring(from, paren);
+        LocalDateTime schedule = LocalDateTime.parse(text.substring(at + 4, at + 20), MINUTE);
+        long minute = Medication.toEpochMinute(schedule);
+        reminders.increment();
+        long late = Duration.between(schedule, LocalDateTime.now()).toNanos();
+        Tracked t = byName.get(name);
+        // A schedule starts at the minute it is set up, so its first reminder is up to a minute late by design.
+        if (t != null && minute >= t.checkFrom()) {
+            lateness.record(late);
+            intervalLateness.record(late);
+        }
+        if (t == null) {
+            unknown.increment();
+        } else if (minute > t.deletedAt) {
+            afterDelete.increment();
+        } else if (!t.remind(minute, base)) {
+            duplicates.increment();
+        }
+    }
+
+    private void report(long start, long deadline) throws InterruptedException {
+        System.out.printf("%8s %9s %9s %9s %9s %10s %11s %8s %9s %10s %6s%n", "elapsed", "cmds/s", "p50 ms", "p99 ms",
+                "p99.9 ms", "reminds/s", "late p99 ms", "gc/s", "gc ms/s", "heap MB", "meds");
+        long last = start;
+        long lastReminders = 0;
+        long[] lastGc = gc();
+        double firstHeap = -1;
+        double heap = 0;
+        while (System.nanoTime() < deadline) {
+            long sleep = Math.min(config.reportMillis, (deadline - System.nanoTime()) / 1_000_000 + 1);
+            Thread.sleep(Math.max(1, sleep));
+            long now = System.nanoTime();
+            Metrics.Histogram[] window = intervalLatency;
+            intervalLatency = histograms();
+            Metrics.Histogram late = intervalLateness;
+            intervalLateness = new Metrics.Histogram();
+            Metrics.Histogram all = window[ALL];
+            double seconds = (now - last) / 1e9;
+            long[] gc = gc();
+            heap = heapAfterGc() / 1048576.0;
+            if (firstHeap < 0) firstHeap = heap;
+            long remindersNow = reminders.sum();
+            System.out.printf("%8s %9.1f %9.2f %9.2f %9.2f %10.1f %11.1f %8.2f %9.1f %10.1f %6d%n",
+                    duration((now - start) / 1_000_000), all.count() / seconds, millis(all, 0.5),
+                    millis(all, 0.99), millis(all, 0.999), (remindersNow - lastReminders) / seconds,
+                    millis(late, 0.99), (gc[0] - lastGc[0]) / seconds, (gc[1] - lastGc[1]) / seconds, heap,
+                    medicationCount());
+            last = now;
+            lastReminders = remindersNow;
+            lastGc = gc;
+        }
+        double hours = (System.nanoTime() - start) / 3.6e12;
+        System.out.printf("heap after GC went from %.1f MB to %.1f MB (%+.1f MB/h)%n", firstHeap, heap,
+                (heap - firstHeap) / hours);
+    }
+
+    private boolean verify(long checkUntil, ReminderScheduler scheduler, MissedDoseMonitor monitor,
+            ExecutorService pool, long addedBefore, long droppedBefore) throws IOException {
+        System.out.printf("%n%-10s %10s %9s %9s %9s %9s %9s%n", "command", "count", "failed", "p50 ms", "p99 ms",
+                "p99.9 ms", "max ms");
+        long failed = 0;
+        for (Op op : Op.values()) {
+            Metrics.Histogram h = latency[op.ordinal()];
+            failed += failures[op.ordinal()].sum();
+            System.out.printf("%-10s %10d %9d %9.2f %9.2f %9.2f %9.2f%n", op.name().toLowerCase(), h.count(),
+                    failures[op.ordinal()].sum(), millis(h, 0.5), millis(h, 0.99), millis(h, 0.999), millis(h, 1));
+        }
+        int shown = 0;
+        for (Map.Entry<String, Integer> e : failureSamples.entrySet()) {
+            if (shown++ == ERRORS_SHOWN) break;
+            System.out.println("  " + e.getValue() + "x " + e.getKey());
+        }
+        System.out.printf("%d reminders (lateness p50 %.1f ms, p99 %.1f ms, max %.1f ms), %d doses escalated%n",
+                reminders.sum(), millis(lateness, 0.5), millis(lateness, 0.99), millis(lateness, 1), escalated.sum());
+
+        long lostReminders = 0;
+        long lostIntakes = 0;
+        int outOfStep = 0;
+        for (Patient p : patients) {
+            if (p.outOfStep) outOfStep++;
+            for (Tracked t : p.live) {
+                Medication m = p.service.findMedication(t.id);
+                synchronized (t) {
+                    Iterator<LocalDateTime> due = m.occurrences(Medication.fromEpochMinute(t.checkFrom),
+                            Medication.fromEpochMinute(checkUntil));
+                    while (due.hasNext()) {
+                        LocalDateTime s = due.next();
+                        long minute = Medication.toEpochMinute(s);
+                        if (!t.reminded.get((int) (minute - base)) && !m.isTaken(s)) lostReminders++;
+                    }
+                    for (int bit = t.taken.nextSetBit(0); bit >= 0; bit = t.taken.nextSetBit(bit + 1)) {
+                        if (!m.isTaken(Medication.fromEpochMinute(base + bit))) lostIntakes++;
+                    }
+                }
+            }
+        }
+        for (Patient p : patients) p.manager.close();
+
+        long held = 0;
+        for (Patient p : patients) held += p.service.recordCount() + p.service.archivedRecordCount();
+        long added = RECORDS_ADDED.get() - addedBefore;
+        long dropped = RECORDS_DROPPED.get() - droppedBefore;
+
+        long notRestored = 0;
+        for (Patient p : patients) {
+            MediCareService restored = open(p.dir, scheduler, monitor, pool);
+            Set<Long> ids = new HashSet<>();
+            for (Medication m : restored.medications()) ids.add(m.getId());
+            for (Tracked t : p.live) {
+                Medication m = restored.findMedication(t.id);
+                if (m == null) {
+                    notRestored++;
+                    continue;
+                }
+                ids.remove(t.id);
+                for (int bit = t.taken.nextSetBit(0); bit >= 0; bit = t.taken.nextSetBit(bit + 1)) {
+                    if (!m.isTaken(Medication.fromEpochMinute(base + bit))) notRestored++;
+                }
+            }
+            notRestored += ids.size();
+            restored.close();
+        }
+        pool.shutdown();
+
+        boolean ok = true;
+        ok &= check("no reminder delivered twice", duplicates.sum());
+        ok &= check("no reminder for a medication after it was deleted", afterDelete.sum());
+        ok &= check("no reminder for an unknown medication", unknown.sum());
+        ok &= check("no due dose left unreminded", lostReminders);
+        ok &= check("no acknowledged intake lost", lostIntakes);
+        ok &= check("history records held or archived equal records added (" + added + ")", Math.abs(added - held));
+        ok &= check("no history record dropped", dropped);
+        ok &= check("journals restore every acknowledged medication and intake", notRestored);
+        ok &= check("consoles asked for exactly the scripted answers", outOfStep);
+        ok &= check("no command failed", failed);
+        return ok;
+    }
+
+    private static boolean check(String invariant, long violations) {
+        System.out.printf("%-4s %s%s%n", violations == 0 ? "PASS" : "FAIL", invariant,
+                violations == 0 ? "" : " (" + violations + ")");
+        return violations == 0;
+    }
+
+    private static MediCareService open(Path dir, ReminderScheduler scheduler, MissedDoseMonitor monitor,
+            ExecutorService pool) {
+        return new MediCareService(RECORDS_PER_PATIENT, dir.resolve("medicare-history.log"),
+                MediCareManager.openJournal(dir.resolve("medicare.journal")), scheduler, monitor, pool);
+    }
+
+    private int medicationCount() {
+        int n = 0;
+        for (Patient p : patients) n += p.service.medicationCount();
+        return n;
+    }
+
+    private String schedule(Random rnd) {
+        if (rnd.nextInt(10) < 7) return "every " + (1 + rnd.nextInt(config.interval)) + "m";
+        long first = now() + 2;
+        int step = 1 + rnd.nextInt(config.interval);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 60; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(Timestamps.minute(first + (long) i * step));
+        }
+        return sb.toString();
+    }
+
+    private static String dosage(Random rnd) {
+        return (1 + rnd.nextInt(8)) * 50 + "mg";
+    }
+
+    private static long now() {
+        return Medication.toEpochMinute(LocalDateTime.now());
+    }
+
+    // One per command, then one for all of them.
+    private static Metrics.Histogram[] histograms() {
+        Metrics.Histogram[] h = new Metrics.Histogram[ALL + 1];
+        for (int i = 0; i < h.length; i++) h[i] = new Metrics.Histogram();
+        return h;
+    }
+
+    private static double millis(Metrics.Histogram h, double q) {
+        return h.quantile(q) / 1e6;
+    }
+
+    // Collections and milliseconds spent collecting, across all collectors.
+    private static long[] gc() {
+        long[] total = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total[0] += Math.max(0, gc.getCollectionCount());
+            total[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    // Heap in use right after the latest collection, young or full; unlike the current usage it does not saw-tooth.
+    private static long heapAfterGc() {
+        Set<String> heapPools = new HashSet<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) heapPools.add(pool.getName());
+        }
+        long latest = -1;
+        long used = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(gc instanceof com.sun.management.GarbageCollectorMXBean)) continue;
+            GcInfo info = ((com.sun.management.GarbageCollectorMXBean) gc).getLastGcInfo();
+            if (info == null || info.getEndTime() <= latest) continue;
+            latest = info.getEndTime();
+            used = 0;
+            for (Map.Entry<String, MemoryUsage> e : info.getMemoryUsageAfterGc().entrySet()) {
+                if (heapPools.contains(e.getKey())) used += e.getValue().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static String duration(long millis) {
+        long s = millis / 1000;
+        return s >= 3600 ? String.format("%dh%02dm", s / 3600, s / 60 % 60) : String.format("%dm%02ds", s / 60, s % 60);
+    }
+}
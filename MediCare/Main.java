@@ -1,15 +1,36 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--train")) {
+            train();
+            return;
+        }
         Scanner scanner = new Scanner(System.in);
         MediCareManager manager = new MediCareManager(scanner);
+        OutputSink out = manager.getOutput();
+        // The menu goes up first; saved data is restored behind it and the first command waits for it if needed.
+        showMenu(out);
+        out.print("Choose an option: ");
+        out.flush();
+        manager.preload();
+        HttpServer metricsServer = startMetrics(out);
+
+        run(manager, scanner, out);
+        manager.close();
+        scanner.close();
+        if (metricsServer != null) metricsServer.stop(0);
+    }
 
 
+private static void run(MediCareManager manager, Scanner scanner, OutputSink out) {
 while (true) {
-    showMenu();
-    System.out.print("Choose an option: ");
     String input = scanner.nextLine().trim();
     
     switch (input) {
@@ -37,44 +58,139 @@ while (true) {
         case "8":
         manager.addFeedback();
         break;
+        case "10":
+        manager.importMedications();
+        break;
+        case "11":
+        manager.exportData();
+        break;
+        case "12":
+        manager.viewAdherence();
+        break;
+        case "13":
+        manager.findMedication();
+        break;
+        case "14":
+        manager.viewMedicationsAsOf();
+        break;
+        case "15":
+        manager.viewMedicationChanges();
+        break;
+        case "16":
+        manager.setGraceWindows();
+        break;
+        case "17":
+        manager.reviewInteractions();
+        break;
         case "9":
-        System.out.println("Exiting MediCare. Stay healthy!");
-        scanner.close();
+        out.println("Exiting MediCare. Stay healthy!");
         return;
         default:
-        System.out.println("Invalid option. Please enter a number from the menu.");
+        out.println("Invalid option. Please enter a number from the menu.");
+        }
+    showMenu(out);
+    out.print("Choose an option: ");
+    out.flush();
+    }
+}
+
+
+// --train runs a scripted session against a scratch store with the output discarded, so that
+// -XX:ArchiveClassesAtExit can record the classes a real session loads. See the README.
+private static void train() throws IOException {
+    Path dir = Files.createTempDirectory("medicare-train");
+    String medications = dir.resolve("medications.csv").toString();
+    String history = dir.resolve("history.jsonl").toString();
+    String script = String.join("\n",
+            "1", "Aspirin", "100mg", "daily at 08:00, 20:00", "With water",
+            "1", "Warfarin", "5mg", "every 24h from 2030-01-01 18:00", "Evening",
+            "1", "Levothyroxine", "50mcg", "2030-01-01 07:00, 2030-01-02 07:00", "Before breakfast",
+            "4", "5", "13", "Asp", "6", "Aspirin", "1", "Taken with breakfast",
+            "8", "Fine", "None", "7", "12", "17", "16", "Aspirin", "30", "120",
+            "2", "Levo", "", "75mcg", "", "",
+            "11", medications, history, "14", "2030-01-01", "15", "Levothyroxine",
+            "3", "Warfarin", "10", medications, "9", "");
+    OutputSink discard = new OutputSink() {
+        @Override
+        public void print(CharSequence text) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
         }
+    };
+    // Twice, so the second session also replays the journal written by the first.
+    for (int session = 0; session < 2; session++) {
+        Scanner scanner = new Scanner(script);
+        MediCareManager manager = new MediCareManager(scanner, dir, discard);
+        showMenu(discard);
+        manager.preload();
+        run(manager, scanner, discard);
+        manager.close();
     }
+    Metrics.global().registerMBean();
+    Metrics.global().render();
 }
 
 
-private static void showMenu() {
+// -Dmedicare.metrics.port=9400 serves /metrics on localhost; -Dmedicare.metrics.file=path rewrites a
+// Prometheus text file every 10 seconds. The JMX bean is always registered.
+private static HttpServer startMetrics(OutputSink out) {
+    Metrics metrics = Metrics.global();
+    metrics.registerMBean();
+    String file = System.getProperty("medicare.metrics.file");
+    if (file != null) metrics.writePeriodically(Paths.get(file), 10);
+    String port = System.getProperty("medicare.metrics.port");
+    if (port == null) return null;
+    try {
+        return metrics.serve(Integer.parseInt(port.trim()));
+    } catch (NumberFormatException | IOException e) {
+        out.println("Unable to serve metrics on port " + port + ": " + e.getMessage());
+        return null;
+    }
+}
+
+private static void showMenu(OutputSink out) {
     final String RESET = "\u001B[0m";
     final String CYAN = "\u001B[36m";
     final String GREEN = "\u001B[32m";
     final String YELLOW = "\u001B[33m";
     final String WHITE_BOLD = "\033[1;37m";
 
-    System.out.println("\n" + CYAN + "==========================================" + RESET);
-    System.out.println(WHITE_BOLD + "            MEDICARE MAIN MENU          " + RESET);
-    System.out.println(CYAN + "==========================================" + RESET);
+    out.println("\n" + CYAN + "==========================================" + RESET);
+    out.println(WHITE_BOLD + "            MEDICARE MAIN MENU          " + RESET);
+    out.println(CYAN + "==========================================" + RESET);
     
-    System.out.println(YELLOW + "  INVENTORY" + RESET);
-    System.out.println("  1. Add Medication");
-    System.out.println("  2. Edit Medication");
-    System.out.println("  3. Delete Medication");
-    System.out.println("  4. View Medication List");
-
-    System.out.println(YELLOW + "\n  PATIENT CARE" + RESET);
-    System.out.println("  5. View Reminders");
-    System.out.println("  6. Log Intake");
-    System.out.println("  7. View History");
-    System.out.println("  8. Add Wellness Feedback");
-
-    System.out.println(CYAN + "------------------------------------------" + RESET);
-    System.out.println(GREEN + "  9. Exit" + RESET);
-    System.out.println(CYAN + "==========================================" + RESET);
-    System.out.print("  Choose an option: ");
+    out.println(YELLOW + "  INVENTORY" + RESET);
+    out.println("  1. Add Medication");
+    out.println("  2. Edit Medication");
+    out.println("  3. Delete Medication");
+    out.println("  4. View Medication List");
+    out.println("  13. Find Medication by Name");
+
+    out.println(YELLOW + "\n  PATIENT CARE" + RESET);
+    out.println("  5. View Reminders");
+    out.println("  6. Log Intake");
+    out.println("  7. View History");
+    out.println("  8. Add Wellness Feedback");
+    out.println("  16. Set Overdue / Missed Dose Windows");
+    out.println("  17. Review Drug Interactions");
+
+    out.println(YELLOW + "\n  DATA" + RESET);
+    out.println("  10. Import Medications (.csv / .jsonl)");
+    out.println("  11. Export Medications and Recent History");
+    out.println("  12. View Adherence");
+    out.println("  14. View Medication List as of a Date");
+    out.println("  15. View Medication Change History");
+
+    out.println(CYAN + "------------------------------------------" + RESET);
+    out.println(GREEN + "  9. Exit" + RESET);
+    out.println(CYAN + "==========================================" + RESET);
+    out.print("  Choose an option: ");
 }
 }
 
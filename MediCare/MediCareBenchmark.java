@@ -0,0 +1,134 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+// Usage: java MediCareBenchmark [benchmark-name-filter] [size,size,...]
+// A plain warm-up-then-best-of-rounds loop rather than JMH: the project is built with javac alone and has no
+// dependencies to pull JMH in through.
+public class MediCareBenchmark {
+    private static final int[] DEFAULT_SIZES = {10, 1_000, 100_000, 1_000_000};
+    private static final long WARMUP_NANOS = 1_000_000_000L;
+    private static final int MEASURE_ROUNDS = 5;
+    private static final long ROUND_NANOS = 500_000_000L;
+    private static final int DATASET_DRUGS = 5000;
+
+    private static volatile Object sink;
+
+    private interface Op {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        int[] sizes = args.length > 1 ? parseSizes(args[1]) : DEFAULT_SIZES;
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        console.printf("%-28s %10s %16s %16s%n", "benchmark", "size", "ns/op", "ops/s");
+        InteractionChecker interactions = InteractionChecker.parse(new StringReader(interactionDataset()));
+        for (int size : sizes) {
+            LocalDateTime base = LocalDateTime.now().plusDays(1).withSecond(0).withNano(0);
+            List<LocalDateTime> schedules = schedules(base, size);
+            MediCareManager manager = new MediCareManager(new Scanner(""), 200, null);
+            Medication med = new Medication(1, "Amoxicillin", "500mg", schedules, "After meals");
+            ReminderScheduler scheduler = new ReminderScheduler();
+            ReminderScheduler.Listener listener = (m, s) -> { };
+            String scheduleInput = scheduleInput(schedules);
+            Medication[] regimen = new Medication[size];
+            for (int i = 0; i < size; i++) regimen[i] = new Medication(i + 1, "drug" + (i * 7 % DATASET_DRUGS), "1 tablet", med.getSchedule(), "");
+            InteractionChecker.Regimen patient = interactions.regimen(regimen);
+            RecordLog fullLog = new RecordLog(size);
+            for (int i = 0; i < size; i++) fullLog.add(new ReminderRecord("2026-01-01 08:00:00", "Viewed reminders."));
+            MediCareManager reminders = new MediCareManager(
+                    new Scanner("Amoxicillin\n500mg\n" + scheduleInput + "\nAfter meals\n"), 200, null);
+            reminders.add();
+
+            run(console, filter, "reminderScan.nextPending", size, () -> sink = med.nextPendingSchedule());
+            run(console, filter, "reminderScan.rearm", size, () -> scheduler.schedule(med, listener));
+            run(console, filter, "addRecord.fillToCapacity", size, () -> {
+                RecordLog log = new RecordLog(size);
+                for (int i = 0; i < size; i++) log.add(new ReminderRecord("2026-01-01 08:00:00", "Viewed reminders."));
+                sink = log;
+            });
+            run(console, filter, "addRecord.pastCapacity", size,
+                    () -> sink = fullLog.add(new ReminderRecord("2026-01-01 08:00:00", "Viewed reminders.")));
+            run(console, filter, "parseSchedules", size, () -> sink = manager.parseSchedules(scheduleInput));
+            run(console, filter, "showReminders", size, reminders::showReminders);
+            run(console, filter, "medication.toString", size, () -> sink = med.toString());
+            run(console, filter, "medication.schedulesString", size, () -> sink = med.getSchedulesString());
+            run(console, filter, "interactions.check", size,
+                    () -> sink = patient.check("Drug42", med.getSchedule(), -1, base));
+
+            // Each size starts from the same set of threads.
+            scheduler.close();
+            manager.close();
+            reminders.close();
+        }
+        System.setOut(console);
+    }
+
+    private static void run(PrintStream console, String filter, String name, int size, Op op) throws Exception {
+        if (!name.contains(filter)) return;
+        long deadline = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < deadline) op.run();
+
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < MEASURE_ROUNDS; round++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                op.run();
+                ops++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < ROUND_NANOS);
+            best = Math.min(best, (double) elapsed / ops);
+        }
+        console.printf("%-28s %10d %16.1f %16.0f%n", name, size, best, 1e9 / best);
+    }
+
+    private static List<LocalDateTime> schedules(LocalDateTime base, int size) {
+        List<LocalDateTime> schedules = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) schedules.add(base.plusMinutes(i));
+        return schedules;
+    }
+
+    private static String scheduleInput(List<LocalDateTime> schedules) {
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+        StringBuilder sb = new StringBuilder(schedules.size() * 18);
+        for (LocalDateTime schedule : schedules) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(schedule.format(formatter));
+        }
+        return sb.toString();
+    }
+
+    // Every drug interacts with a handful of others and belongs to one of 50 classes.
+    private static String interactionDataset() {
+        StringBuilder sb = new StringBuilder(DATASET_DRUGS * 160);
+        for (int i = 0; i < DATASET_DRUGS; i++) {
+            for (int j = 1; j <= 4; j++) {
+                sb.append("interaction|drug").append(i).append("|drug").append((i + j * 37) % DATASET_DRUGS)
+                        .append("|moderate|").append(j % 2 * 2).append("|Synthetic interaction\n");
+            }
+        }
+        for (int c = 0; c < 50; c++) {
+            sb.append("class|class").append(c);
+            for (int i = c; i < DATASET_DRUGS; i += 50) sb.append("|drug").append(i);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static int[] parseSizes(String arg) {
+        String[] parts = arg.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) sizes[i] = Integer.parseInt(parts[i].trim());
+        return sizes;
+    }
+}
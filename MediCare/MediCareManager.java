@@ -1,250 +1,460 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.DateTimeException;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Scanner;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// Console front end: reads answers from the Scanner, calls MediCareService and prints the outcome.
 public class MediCareManager implements Manageable {
-    private Medication[] medications;
-    private int medCount;
-
-    private Record[] records;
-    private int recCount;
+    private static final int MAX_REC = 200;
 
-    private final int MAX_MED = 50;
-    private final int MAX_REC = 200;
+    private static final int SNAPSHOT_EVERY = 10_000;
+    private static final long COMMIT_INTERVAL_MILLIS = 50;
+    private static final int LISTING_CHUNK = 16 * 1024;
+    private static final int MATCHES_SHOWN = 10;
+    private static final long ESCALATION_BATCH_MILLIS = 2000;
+    private static final String PATIENT = "local";
 
     private Scanner input;
-    private DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-
+    // Saved state is restored by whichever comes first: preload() or the first command that needs it.
+    private final FutureTask<MediCareService> restore;
+    // Claimed by the restore when it starts, or by close() if it gets there first, so exactly one of them decides
+    // whether anything is opened.
+    private final AtomicBoolean restoreClaimed = new AtomicBoolean();
+    private final OutputSink out;
+    private volatile EscalationOutbox escalations;
+    // Reused for every listing; records render into it and it is handed to the sink in large chunks.
+    private final StringBuilder listing = new StringBuilder(LISTING_CHUNK + 256);
+    private static final DateTimeFormatter SCHEDULE_INPUT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+    // Nothing is read from disk until preload() or the first command, so the menu can be up before the
+    // journal is. -Dmedicare.interactions=path picks the interaction dataset; by default interactions.txt is
+    // used if present. -Dmedicare.zone=zone picks the time zone schedules are kept in; by default the system's.
     public MediCareManager(Scanner input) {
+        this(input, Paths.get(""), new AsyncOutputSink(System.out));
+    }
+
+    MediCareManager(Scanner input, Path dir, OutputSink out) {
+        this(input, dir, out, systemClock(out));
+    }
+
+    // Keeps its journal and history archive in dir.
+    MediCareManager(Scanner input, Path dir, OutputSink out, Clock clock) {
+        this(input, () -> {
+            MediCareService service = new MediCareService(MAX_REC, dir.resolve("medicare-history.log"),
+                    openJournal(dir.resolve("medicare.journal"), out::println), null, null, ForkJoinPool.commonPool(), clock);
+            service.setInteractionChecker(loadInteractions(Paths.get(System.getProperty("medicare.interactions", "interactions.txt")), out));
+            return service;
+        }, out);
+    }
+
+    public MediCareManager(Scanner input, int recordCapacity, Path historyArchive) {
+        this(input, recordCapacity, historyArchive, null);
+    }
+
+    public MediCareManager(Scanner input, int recordCapacity, Path historyArchive, Journal journal) {
+        this(input, new MediCareService(recordCapacity, historyArchive, journal));
+    }
+
+    public MediCareManager(Scanner input, MediCareService service) {
+        this(input, service, new AsyncOutputSink(System.out));
+    }
+
+    public MediCareManager(Scanner input, MediCareService service, OutputSink out) {
+        this(input, () -> service, out);
+        restore.run();
+    }
+
+    private MediCareManager(Scanner input, Callable<MediCareService> open, OutputSink out) {
         this.input = input;
-        medications = new Medication[MAX_MED];
-        medCount = 0;
-        records = new Record[MAX_REC];
-        recCount = 0;
-
-        Thread reminderThread = new Thread(() -> {
-            while (true) {
-                try {
-                    LocalDateTime now = LocalDateTime.now();
-                    for (int i = 0; i < medCount; i++) {
-                        Medication m = medications[i];
-                        if (m != null) {  
-                            for (LocalDateTime schedule : m.getSchedules()) {
-                                if (!m.getRemindedSchedules().contains(schedule) && !m.getTakenSchedules().contains(schedule) && now.isAfter(schedule)) {
-                                    System.out.println("\n Reminder: Time to take " + m.getName()
-                                            + " (" + m.getDosage() + ") at " + schedule.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")));
-                                    addRecord(new ReminderRecord(now(), "Medication reminder for " + m.getName() + " at " + schedule.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm"))));
-                                    m.addRemindedSchedule(schedule);
-                                }
-                            }
-                        }
-                    }
-                    Thread.sleep(10_000);
-                } catch (InterruptedException e) {
-                    break;
-                }
-            }
+        this.out = out;
+        restore = new FutureTask<>(() -> {
+            if (!restoreClaimed.compareAndSet(false, true)) throw new IllegalStateException("Already closed");
+            return attach(open.call());
         });
-        reminderThread.setDaemon(true);
-        reminderThread.start();
+    }
+
+    private MediCareService attach(MediCareService service) {
+        if (service.getRestoreFailure() != null) {
+            out.println("Unable to restore saved data: " + service.getRestoreFailure().getMessage());
+        }
+        service.setReminderListener(this::remind);
+        service.setWarningListener(out::println);
+        Path archive = service.getHistoryArchive();
+        escalations = new EscalationOutbox(archive == null ? null : archive.resolveSibling("medicare-escalations.outbox"),
+                this::notifyEscalations, ESCALATION_BATCH_MILLIS, service.getClock(), out::println);
+        service.setEscalationListener(e -> escalations.offer(PATIENT, e));
+        return service;
+    }
+
+    // Starts restoring saved state in the background.
+    public void preload() {
+        Thread t = new Thread(restore, "medicare-restore");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    static Clock systemClock(OutputSink out) {
+        String zone = System.getProperty("medicare.zone");
+        if (zone == null) return Clock.systemDefaultZone();
+        try {
+            return Clock.system(ZoneId.of(zone));
+        } catch (DateTimeException e) {
+            out.println("Unknown time zone " + zone + ", using " + ZoneId.systemDefault());
+            return Clock.systemDefaultZone();
+        }
+    }
+
+    static Journal openJournal(Path file) {
+        return openJournal(file, System.out::println);
+    }
+
+    // Null if the file cannot be opened; warnings, that one included, go to the consumer.
+    static Journal openJournal(Path file, Consumer<String> warnings) {
+        try {
+            return new Journal(file, SNAPSHOT_EVERY, COMMIT_INTERVAL_MILLIS, warnings);
+        } catch (IOException e) {
+            warnings.accept("Unable to open " + file + ", changes will not be saved: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // A missing file just means no checks; a malformed one is reported and ignored.
+    static InteractionChecker loadInteractions(Path file, OutputSink out) {
+        if (!Files.exists(file)) return InteractionChecker.none();
+        try {
+            return InteractionChecker.load(file);
+        } catch (IOException | RuntimeException e) {
+            out.println("Unable to load interactions from " + file + ", medications will not be checked: "
+                    + e.getMessage());
+            return InteractionChecker.none();
+        }
+    }
+
+    public MediCareService getService() {
+        return service();
+    }
+
+    // Restores on the calling thread if nothing has started it yet, otherwise waits for it to finish.
+    private MediCareService service() {
+        restore.run();
+        try {
+            return restore.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while restoring saved data", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to restore saved data: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    public OutputSink getOutput() {
+        return out;
+    }
+
+    // Runs on the reminder thread; it only enqueues, so a burst of reminders never waits on the console.
+    private void remind(Medication m, LocalDateTime schedule) {
+        StringBuilder sb = new StringBuilder(96);
+        sb.append(System.lineSeparator()).append(" Reminder: Time to take ").append(m.getName())
+                .append(" (").append(m.getDosage()).append(") at ");
+        sb.append(Timestamps.minute(schedule));
+        out.println(sb);
+    }
+
+    private void notifyEscalations(String patientId, List<Escalation> batch) {
+        StringBuilder sb = new StringBuilder(64 + 64 * batch.size());
+        sb.append(System.lineSeparator()).append(" Attention: ").append(batch.size())
+                .append(batch.size() == 1 ? " dose has" : " doses have").append(" not been logged");
+        for (Escalation e : batch) sb.append(System.lineSeparator()).append("   ").append(e);
+        out.println(sb);
+        out.flush();
+    }
+
+    // Prompts are queued like everything else, so they must reach the console before blocking on input.
+    private String readLine() {
+        out.flush();
+        return input.nextLine();
     }
 
 
     public void add() {
         try {
-            System.out.print("Medication name: ");
-            String name = input.nextLine().trim();
+            out.print("Medication name: ");
+            String name = readLine().trim();
             if (name.isEmpty()) throw new InvalidMedicationException("Name cannot be empty");
 
-            System.out.print("Dosage (e.g. 500mg or 1 tablet): ");
-            String dosage = input.nextLine().trim();
+            out.print("Dosage (e.g. 500mg or 1 tablet): ");
+            String dosage = readLine().trim();
             if (dosage.isEmpty()) throw new InvalidMedicationException("Dosage cannot be empty");
 
-            System.out.print("Schedules (comma-separated, e.g., 2023-10-01 08:00, 2023-10-01 14:00): ");
-            String scheduleInput = input.nextLine().trim();
+            out.print("Schedules (comma-separated, e.g., 2023-10-01 08:00, 2023-10-01 14:00,\n"
+                    + "  or a rule, e.g., every 8h from 2023-10-01 08:00 / daily at 08:00, 20:00 until 2023-12-31): ");
+            String scheduleInput = readLine().trim();
             if (scheduleInput.isEmpty()) throw new InvalidMedicationException("At least one schedule is required");
-            List<LocalDateTime> schedules = parseSchedules(scheduleInput);
-            if (schedules.isEmpty()) throw new InvalidMedicationException("Invalid schedule format");
-
-            System.out.print("Instructions: ");
-            String instructions = input.nextLine().trim();
-            if (instructions.isEmpty()) throw new InvalidMedicationException("Follow the doctor's instructions");
-
-            if (medCount >= MAX_MED) {
-                System.out.println("Medication storage is full!!!");
-                return;
-            }
+            Schedule schedules = service().parseSchedule(scheduleInput);
+            if (schedules.size() == 0) throw new InvalidMedicationException("Invalid schedule format");
 
-            Medication med = new Medication(name, dosage, schedules, instructions);
-            medications[medCount++] = med;
+            out.print("Instructions: ");
+            String instructions = readLine().trim();
 
-            System.out.println("Medication added successfully.");
+            Medication med = service().addMedication(name, dosage, schedules, instructions);
+            out.println("Medication added successfully.");
+            printInteractions(service().interactionsOf(med.getId()));
         } catch (InvalidMedicationException ime) {
-            System.out.println("[ERROR] " + ime.getMessage());
+            out.println("[ERROR] " + ime.getMessage());
         } catch (Exception e) {
-            System.out.println("Unexpected error occurred while adding medication: " + e.getMessage());
+            out.println("Unexpected error occurred while adding medication: " + e.getMessage());
         }
     }
 
     public void edit() {
         try {
-            if (medCount == 0) {
-                System.out.println("No medications to edit.");
+            if (service().medicationCount() == 0) {
+                out.println("No medications to edit.");
                 return;
             }
 
-            listMedications();
-            System.out.print("Enter medication index to edit (starting at 1): ");
-            int idx = Integer.parseInt(input.nextLine()) - 1;
-            if (idx < 0 || idx >= medCount) {
-                System.out.println("Invalid index.");
-                return;
-            }
+            Medication med = selectMedication("edit");
+            if (med == null) return;
 
-            Medication med = medications[idx];
-            System.out.println("Editing: " + med.getName());
-            System.out.print("New name (leave blank to keep): ");
-            String name = input.nextLine().trim();
-            if (!name.isEmpty()) med.setName(name);
-
-            System.out.print("New dosage (leave blank to keep): ");
-            String dosage = input.nextLine().trim();
-            if (!dosage.isEmpty()) med.setDosage(dosage);
-
-            System.out.print("New schedules (comma-separated, leave blank to keep): ");
-            String scheduleInput = input.nextLine().trim();
-            if (!scheduleInput.isEmpty()) {
-                List<LocalDateTime> schedules = parseSchedules(scheduleInput);
-                if (!schedules.isEmpty()) med.setSchedules(schedules);
-            }
+            out.println("Editing: " + med.getName());
+            out.print("New name (leave blank to keep): ");
+            String name = readLine();
+
+            out.print("New dosage (leave blank to keep): ");
+            String dosage = readLine();
+
+            out.print("New schedules (comma-separated or a rule, leave blank to keep): ");
+            String scheduleInput = readLine();
 
-            System.out.print("New instructions (leave blank to keep): ");
-            String instructions = input.nextLine().trim();
-            if (!instructions.isEmpty()) med.setInstructions(instructions);
+            out.print("New instructions (leave blank to keep): ");
+            String instructions = readLine();
 
-            System.out.println("Medication has been updated.");
-            addRecord(new ReminderRecord(now(), "Edited medication: " + med.getName()));
+            service().editMedication(med.getId(), name, dosage, scheduleInput, instructions);
+            out.println("Medication has been updated.");
+            if (!name.trim().isEmpty() || !scheduleInput.trim().isEmpty()) printInteractions(service().interactionsOf(med.getId()));
         } catch (NumberFormatException nfe) {
-            System.out.println("Invalid number input.");
+            out.println("Invalid number input.");
         } catch (Exception e) {
-            System.out.println("Error editing medication: " + e.getMessage());
+            out.println("Error editing medication: " + e.getMessage());
         }
     }
 
     public void delete() {
         try {
-            if (medCount == 0) {
-                System.out.println("No medications to delete.");
-                return;
-            }
-            listMedications();
-            System.out.print("Enter medication index to delete (starting at 1): ");
-            int idx = Integer.parseInt(input.nextLine()) - 1;
-            if (idx < 0 || idx >= medCount) {
-                System.out.println("Invalid index.");
+            if (service().medicationCount() == 0) {
+                out.println("No medications to delete.");
                 return;
             }
+            Medication med = selectMedication("delete");
+            if (med == null) return;
+
+            service().deleteMedication(med.getId());
+            out.println("Medication has been deleted.");
+        } catch (NumberFormatException nfe) {
+            out.println("Invalid number input.");
+        } catch (Exception e) {
+            out.println("Error deleting medication: " + e.getMessage());
+        }
+    }
 
-            String removeName = medications[idx].getName();
+    public void listMedications() {
+        out.println("-----Medication List-----");
+        Medication[] meds = service().medications();
+        if (meds.length == 0) {
+            out.println("No medications stored.");
+            return;
+        }
+        for (Medication m : meds) {
+            out.println(m.getId() + ") " + m);
+        }
+    }
 
-            for (int i = idx; i < medCount - 1; i++) {
-                medications[i] = medications[i + 1];
+    public void setGraceWindows() {
+        try {
+            if (service().medicationCount() == 0) {
+                out.println("No medications to configure.");
+                return;
             }
-
-            medications[--medCount] = null;
-            System.out.println("Medication has been deleted.");
-            addRecord(new ReminderRecord(now(), "Deleted medication: " + removeName));
+            Medication med = selectMedication("configure");
+            if (med == null) return;
+            out.println("A reminded dose not logged after " + med.getOverdueAfterMinutes() + " minutes is overdue, after "
+                    + med.getMissedAfterMinutes() + " minutes it is missed.");
+            out.print("Minutes until overdue (leave blank to keep): ");
+            String overdue = readLine().trim();
+            out.print("Minutes until missed (leave blank to keep): ");
+            String missed = readLine().trim();
+            service().setGraceWindows(med.getId(),
+                    overdue.isEmpty() ? med.getOverdueAfterMinutes() : Integer.parseInt(overdue),
+                    missed.isEmpty() ? med.getMissedAfterMinutes() : Integer.parseInt(missed));
+            out.println("Grace windows updated.");
         } catch (NumberFormatException nfe) {
-            System.out.println("Invalid number input.");
+            out.println("Invalid number input.");
         } catch (Exception e) {
-            System.out.println("Error deleting medication: " + e.getMessage());
+            out.println("Error setting grace windows: " + e.getMessage());
         }
     }
 
-    public void listMedications() {
-        System.out.println("-----Medication List-----");
-        if (medCount == 0) {
-            System.out.println("No medications stored.");
+    public void reviewInteractions() {
+        out.println("-----Interactions and Duplicate Therapies-----");
+        if (!service().hasInteractionData()) {
+            out.println("No interaction dataset loaded (interactions.txt).");
             return;
         }
-        for (int i = 0; i < medCount; i++) {
-            System.out.printf("%d) %s\n", i + 1, medications[i].toString());
+        List<InteractionChecker.Finding> findings = service().reviewInteractions();
+        if (findings.isEmpty()) {
+            out.println("No interactions or duplicate therapies found.");
+            return;
+        }
+        for (int i = 0; i < findings.size(); i++) out.println((i + 1) + ") " + findings.get(i));
+    }
+
+    private void printInteractions(List<InteractionChecker.Finding> findings) {
+        for (InteractionChecker.Finding f : findings) out.println("[WARNING] " + f);
+    }
+
+    public void findMedication() {
+        out.print("Medication name or the start of it: ");
+        String query = readLine().trim();
+        List<Medication> matches = service().searchMedications(query, MATCHES_SHOWN + 1);
+        if (matches.isEmpty()) {
+            printSuggestions(query);
+            return;
+        }
+        for (int i = 0; i < Math.min(matches.size(), MATCHES_SHOWN); i++) {
+            Medication m = matches.get(i);
+            out.println(m.getId() + ") " + m);
+        }
+        if (matches.size() > MATCHES_SHOWN) out.println("... more match; type more of the name to narrow it down.");
+    }
+
+    // Accepts a medication ID, an exact name, or the start of a name that only one medication has.
+    private Medication selectMedication(String action) {
+        out.print("Enter medication ID or name to " + action + " (blank to list all): ");
+        String query = readLine().trim();
+        if (query.isEmpty()) {
+            listMedications();
+            out.print("Enter medication ID or name to " + action + ": ");
+            query = readLine().trim();
+        }
+        return resolveMedication(query);
+    }
+
+    private Medication resolveMedication(String query) {
+        if (isId(query)) return medicationById(query);
+        List<Medication> matches = service().findMedicationsByName(query);
+        if (matches.isEmpty()) matches = service().searchMedications(query, MATCHES_SHOWN + 1);
+        if (matches.size() == 1) return matches.get(0);
+        if (matches.isEmpty()) {
+            printSuggestions(query);
+            return null;
+        }
+        out.println("Several medications match \"" + query + "\":");
+        for (int i = 0; i < Math.min(matches.size(), MATCHES_SHOWN); i++) {
+            Medication m = matches.get(i);
+            out.println("  " + m.getId() + ") " + m.getName() + " - " + m.getDosage());
+        }
+        if (matches.size() > MATCHES_SHOWN) out.println("  ...");
+        out.print("Enter medication ID: ");
+        return medicationById(readLine().trim());
+    }
+
+    private static boolean isId(String query) {
+        return !query.isEmpty() && query.chars().allMatch(Character::isDigit);
+    }
+
+    private Medication medicationById(String id) {
+        Medication med = service().findMedication(Long.parseLong(id));
+        if (med == null) out.println("No medication with ID " + id + ".");
+        return med;
+    }
+
+    private void printSuggestions(String query) {
+        List<Medication> close = service().suggestMedications(query, MATCHES_SHOWN);
+        if (close.isEmpty()) {
+            out.println("No medication matches \"" + query + "\".");
+            return;
+        }
+        out.println("No medication matches \"" + query + "\". Did you mean:");
+        for (Medication m : close) {
+            out.println("  " + m.getId() + ") " + m.getName() + " - " + m.getDosage());
         }
     }
 
     public void showReminders() {
-        System.out.println("-----Reminders-----");
-        if (medCount == 0) {
-            System.out.println("No medications to remind.");
+        out.println("-----Reminders-----");
+        if (service().medicationCount() == 0) {
+            out.println("No medications to remind.");
             return;
         }
         boolean hasReminders = false;
-        for (int i = 0; i < medCount; i++) {
-            Medication m = medications[i];
-            if (m != null) {
-                List<LocalDateTime> untakenSchedules = new ArrayList<>();
-                for (LocalDateTime schedule : m.getSchedules()) {
-                    if (!m.getTakenSchedules().contains(schedule)) {
-                        untakenSchedules.add(schedule);
-                    }
-                }
-                if (!untakenSchedules.isEmpty()) {
-                    hasReminders = true;
-                    System.out.println((i + 1) + ") Take " + m.getName() + " - " + m.getDosage());
-                    System.out.println("   Upcoming Schedules: " + formatSchedules(untakenSchedules));
-                    System.out.println("   Instructions: " + m.getInstructions());
-                }
-            }
+        List<MediCareService.Reminder> reminders = service().reminders();
+        for (int i = 0; i < reminders.size(); i++) {
+            MediCareService.Reminder reminder = reminders.get(i);
+            if (reminder.getSchedules().isEmpty()) continue;
+            Medication m = reminder.getMedication();
+            hasReminders = true;
+            out.println((i + 1) + ") Take " + m.getName() + " - " + m.getDosage());
+            out.println("   Upcoming Schedules: " + formatSchedules(reminder.getSchedules()));
+            out.println("   Instructions: " + m.getInstructions());
         }
         if (!hasReminders) {
-            System.out.println("No upcoming reminders.");
+            out.println("No upcoming reminders.");
         }
-        addRecord(new ReminderRecord(now(), "Viewed reminders."));
     }
 
     public void logMedicationIntake() {
         try {
-            if (medCount == 0) {
-                System.out.println("No medications to log.");
-                return;
-            }
-            listMedications();
-            System.out.print("Enter medication index you already took (starting at 1): ");
-            int idx = Integer.parseInt(input.nextLine()) - 1;
-            if (idx < 0 || idx >= medCount) {
-                System.out.println("Invalid index.");
+            if (service().medicationCount() == 0) {
+                out.println("No medications to log.");
                 return;
             }
-            Medication med = medications[idx];
-            List<LocalDateTime> schedules = med.getSchedules();
+            Medication med = selectMedication("log");
+            if (med == null) return;
+            List<LocalDateTime> schedules = service().selectableSchedules(med);
             if (schedules.isEmpty()) {
-                System.out.println("No schedules for this medication.");
+                out.println("No schedules for this medication.");
                 return;
             }
-            System.out.println("Select the schedule you took it for:");
+            out.println("Select the schedule you took it for:");
             for (int i = 0; i < schedules.size(); i++) {
-                System.out.println((i + 1) + ") " + schedules.get(i).format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")));
+                out.println((i + 1) + ") " + Timestamps.minute(schedules.get(i)));
             }
-            System.out.print("Enter schedule index (starting at 1): ");
-            int schedIdx = Integer.parseInt(input.nextLine()) - 1;
+            out.print("Enter schedule index (starting at 1): ");
+            int schedIdx = Integer.parseInt(readLine()) - 1;
             if (schedIdx < 0 || schedIdx >= schedules.size()) {
-                System.out.println("Invalid schedule index.");
+                out.println("Invalid schedule index.");
                 return;
             }
             LocalDateTime selectedSchedule = schedules.get(schedIdx);
-            System.out.print("Additional note for medication intake: ");
-            String note = input.nextLine().trim();
-            String desc = note.isEmpty() ? "Taken" : note;
-            MedicationRecord mrec = new MedicationRecord(now(), desc + " at " + selectedSchedule.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")), med);
-            addRecord(mrec);
-            med.addTakenSchedule(selectedSchedule);  
-            System.out.println("Medication intake logged for " + med.getName() + " at " + selectedSchedule.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")));
+            out.print("Additional note for medication intake: ");
+            String note = readLine();
+            service().logIntake(med.getId(), selectedSchedule, note);
+            out.println("Medication intake logged for " + med.getName() + " at " + Timestamps.minute(selectedSchedule));
         } catch (NumberFormatException nfe) {
-            System.out.println("Invalid number input.");
+            out.println("Invalid number input.");
         } catch (Exception e) {
-            System.out.println("Error logging intake: " + e.getMessage());
+            out.println("Error logging intake: " + e.getMessage());
         }
     }
 
@@ -253,90 +463,220 @@ public class MediCareManager implements Manageable {
     public void addFeedback() {
         viewFeedback();  
         try {
-            System.out.print("How are you feeling after taking the medication? (brief): ");
-            String feeling = input.nextLine().trim();
-            System.out.print("Any symptoms or side effects? (brief): ");
-            String symptoms = input.nextLine().trim();
-
-            String notes = "Feeling: " + (feeling.isEmpty() ? "Not specified" : feeling);
-            if (!symptoms.isEmpty()) notes += " | Symptoms: " + symptoms;
+            out.print("How are you feeling after taking the medication? (brief): ");
+            String feeling = readLine();
+            out.print("Any symptoms or side effects? (brief): ");
+            String symptoms = readLine();
 
-            FeedbackRecord frec = new FeedbackRecord(now(), "Patient wellness feedback", notes);
-            addRecord(frec);
-            System.out.println("Feedback recorded. Thank you for reporting your wellness.");
+            service().addFeedback(feeling, symptoms);
+            out.println("Feedback recorded. Thank you for reporting your wellness.");
         } catch (Exception e) {
-            System.out.println("Error recording feedback: " + e.getMessage());
+            out.println("Error recording feedback: " + e.getMessage());
         }
     }
 
     public void viewFeedback() {
-        System.out.println("\n-- Wellness Feedback History --");
-        boolean hasFeedback = false;
-        for (int i = 0; i < recCount; i++) {
-            if (records[i] instanceof FeedbackRecord) {
-                System.out.print((i + 1) + ") ");
-                records[i].displayRecord();
-                hasFeedback = true;
+        out.println("\n-- Wellness Feedback History --");
+        NavigableMap<RecordIndex.Key, Record> feedback = service().feedback();
+        printRecords(feedback);
+        if (feedback.isEmpty()) {
+            out.println("No feedback records available.");
+        }
+    }
+
+    // What the medication list looked like at a past moment, e.g. the dose that was prescribed on a given day.
+    public void viewMedicationsAsOf() {
+        out.print("Date and time (yyyy-MM-dd HH:mm, or yyyy-MM-dd for the end of that day): ");
+        String input = readLine().trim();
+        LocalDateTime at;
+        try {
+            at = input.length() <= 10 ? LocalDate.parse(input).atTime(23, 59, 59) : LocalDateTime.parse(input, SCHEDULE_INPUT);
+        } catch (DateTimeParseException e) {
+            out.println("Invalid date format.");
+            return;
+        }
+        out.println("-----Medication List as of " + input + "-----");
+        List<MedicationHistory.Version> versions = service().medicationsAsOf(at);
+        if (versions.isEmpty()) {
+            out.println("No medications stored at that time.");
+            return;
+        }
+        for (MedicationHistory.Version v : versions) {
+            out.println(v.getMedicationId() + ") " + v);
+        }
+    }
+
+    // Deleted medications can still be looked up by ID.
+    public void viewMedicationChanges() {
+        out.print("Enter medication ID or name: ");
+        String query = readLine().trim();
+        long id;
+        if (isId(query)) {
+            id = Long.parseLong(query);
+        } else {
+            Medication med = resolveMedication(query);
+            if (med == null) return;
+            id = med.getId();
+        }
+        List<MedicationHistory.Version> changes = service().medicationChanges(id);
+        if (changes.isEmpty()) {
+            out.println("No medication with ID " + id + ".");
+            return;
+        }
+        out.println("-----Changes to medication " + id + "-----");
+        for (MedicationHistory.Version v : changes) {
+            LocalDateTime at = v.getTime();
+            String when = at == null ? "(time unknown)  " : Timestamps.minute(at);
+            switch (v.getChange()) {
+                case ADDED:
+                    out.println(when + " Added: " + v);
+                    break;
+                case EDITED:
+                    out.println(when + " Edited: " + v);
+                    break;
+                default:
+                    out.println(when + " Deleted: " + v.getName());
             }
         }
-        if (!hasFeedback) {
-            System.out.println("No feedback records available.");
+    }
+
+    public void viewAdherence() {
+        out.println("-----Adherence-----");
+        AdherenceTracker.Snapshot all = service().adherence();
+        out.println(adherenceLine("Overall", all));
+        for (Medication m : service().medications()) out.println(adherenceLine(m.getName(), service().adherence(m)));
+        long[] lateness = all.getLateness();
+        StringBuilder sb = new StringBuilder("Intake timing:");
+        for (int i = 0; i < lateness.length; i++) {
+            sb.append(' ').append(AdherenceTracker.LATE_LABELS[i]).append('=').append(lateness[i]);
+        }
+        out.println(sb);
+    }
+
+    private static String adherenceLine(String label, AdherenceTracker.Snapshot s) {
+        return String.format("%s: %d of %d doses taken, %d missed | overall %.0f%% | 7 days %.0f%% | 30 days %.0f%%",
+                label, s.getTaken(), s.getScheduled(), s.getMissed(),
+                s.getRate() * 100, s.getRollingRate(7) * 100, s.getRollingRate(30) * 100);
+    }
+
+    public void importMedications() {
+        out.print("File to import (.csv or .jsonl): ");
+        String file = readLine().trim();
+        try {
+            MedicationTransfer.Report report = MedicationTransfer.importFrom(Paths.get(file), service());
+            out.println("Imported " + report.getImported() + " medication(s) from " + report.getLines()
+                    + " line(s); " + report.getFailed() + " failed.");
+            for (String error : report.getErrors()) out.println("  " + error);
+            if (report.getFailed() > report.getErrors().size()) {
+                out.println("  ... and " + (report.getFailed() - report.getErrors().size()) + " more.");
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            out.println("Unable to import " + file + ": " + e.getMessage());
+        }
+    }
+
+    public void exportData() {
+        out.print("Export medications to (.csv or .jsonl, leave blank to skip): ");
+        String medicationsFile = readLine().trim();
+        out.print("Export recent history to (.csv or .jsonl, leave blank to skip): ");
+        String historyFile = readLine().trim();
+        try {
+            if (!medicationsFile.isEmpty()) {
+                Path path = Paths.get(medicationsFile);
+                Medication[] medications = service().medications();
+                int written;
+                try (Writer w = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+                    written = MedicationTransfer.exportMedications(medications, w, MedicationTransfer.Format.of(path),
+                            LocalDateTime.now(service().getClock()));
+                }
+                out.println("Medications exported to " + path + (written == medications.length ? ""
+                        : " (" + (medications.length - written) + " with no doses left to take were skipped)"));
+            }
+            if (!historyFile.isEmpty()) {
+                Path path = Paths.get(historyFile);
+                try (Writer w = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+                    MedicationTransfer.exportHistory(service().history(), w, MedicationTransfer.Format.of(path),
+                            service().getClock().getZone());
+                }
+                long archived = service().archivedRecordCount();
+                out.println("Recent history exported to " + path + (archived == 0 || service().getHistoryArchive() == null
+                        ? "" : " (" + archived + " older records are only in " + service().getHistoryArchive() + ")"));
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            out.println("Unable to export: " + e.getMessage());
         }
     }
 
     public void viewHistory() {
-        System.out.println("\n-- Medication History / Records --");
-        if (recCount == 0) {
-            System.out.println("No records available.");
+        out.println("\n-- Medication History / Records --");
+        if (service().recordCount() == 0) {
+            out.println("No records available.");
             return;
         }
-        for (int i = 0; i < recCount; i++) {
-            System.out.print((i + 1) + ") ");
-            records[i].displayRecord();
+        if (service().archivedRecordCount() > 0 && service().getHistoryArchive() != null) {
+            out.println("(" + service().archivedRecordCount() + " older records archived in " + service().getHistoryArchive() + ")");
         }
+        printRecords(service().history());
     }
 
-    private void addRecord(Record r) {
-        if (recCount >= MAX_REC) {
-            System.out.println("Record storage full. Oldest record will be removed.");
-            for (int i = 0; i < recCount - 1; i++) records[i] = records[i + 1];
-            records[recCount - 1] = r;
-        } else {
-            records[recCount++] = r;
-        }
+    public Collection<Record> findRecords(LocalDateTime from, LocalDateTime to) {
+        return service().findRecords(from, to);
+    }
+
+    public Collection<Record> findRecords(Class<? extends Record> type, LocalDateTime from, LocalDateTime to) {
+        return service().findRecords(type, from, to);
     }
 
-    private String now() {
-        return LocalDateTime.now().format(dtf);
+    public Collection<Record> findIntakes(Medication medication, LocalDateTime from, LocalDateTime to) {
+        return service().findIntakes(medication, from, to);
     }
 
-    private List<LocalDateTime> parseSchedules(String input) throws InvalidMedicationException {
-        List<LocalDateTime> schedules = new ArrayList<>();
-        String[] parts = input.split(",");
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
-        LocalDateTime now = LocalDateTime.now();
-        for (String part : parts) {
+    // Closing before the restore has started means it never opens anything. A restore already under way is
+    // waited for, and whatever it opened is closed.
+    public void close() {
+        if (!restoreClaimed.compareAndSet(false, true)) {
+            MediCareService service;
             try {
-                LocalDateTime schedule = LocalDateTime.parse(part.trim(), formatter);
-                if (schedule.isBefore(now)) {
-                    throw new InvalidMedicationException("Schedule cannot be in the past: " + part.trim());
+                service = service();
+            } catch (IllegalStateException e) {
+                service = null; // nothing was opened
+            }
+            if (service != null) {
+                escalations.close();
+                service.close();
+            }
+        }
+        out.close();
+    }
+
+    List<LocalDateTime> parseSchedules(String input) throws InvalidMedicationException {
+        return service().parseSchedules(input);
+    }
+
+    private void printRecords(NavigableMap<RecordIndex.Key, Record> index) {
+        listing.setLength(0);
+        try {
+            for (Map.Entry<RecordIndex.Key, Record> e : index.entrySet()) {
+                listing.append(e.getKey().getSeq() + 1).append(") ");
+                e.getValue().displayRecord(listing, service().getClock().getZone());
+                if (listing.length() >= LISTING_CHUNK) {
+                    out.print(listing);
+                    listing.setLength(0);
                 }
-                schedules.add(schedule);
-            } catch (Exception e) {
-                throw new InvalidMedicationException("Invalid schedule format: " + part.trim());
             }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return schedules;
+        out.print(listing);
+        listing.setLength(0);
     }
 
     private String formatSchedules(List<LocalDateTime> schedules) {
-        StringBuilder sb = new StringBuilder();
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+        StringBuilder sb = new StringBuilder(schedules.size() * 18);
         for (LocalDateTime schedule : schedules) {
             if (sb.length() > 0) sb.append(", ");
-            sb.append(schedule.format(formatter));
+            sb.append(Timestamps.minute(schedule));
         }
         return sb.toString();
     }
 }
-
@@ -0,0 +1,803 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+// One patient's medications, history, reminders and journal, driven through typed calls.
+// Nothing here reads input or prints; MediCareManager is the console on top of it.
+public class MediCareService {
+    public interface Command<T> {
+        T apply(MediCareService service) throws InvalidMedicationException;
+    }
+
+    public static final class Intake {
+        private final long medicationId;
+        private final LocalDateTime schedule;
+        private final String note;
+
+        public Intake(long medicationId, LocalDateTime schedule, String note) {
+            this.medicationId = medicationId;
+            this.schedule = schedule;
+            this.note = note;
+        }
+
+        public long getMedicationId() {
+            return medicationId;
+        }
+
+        public LocalDateTime getSchedule() {
+            return schedule;
+        }
+
+        public String getNote() {
+            return note;
+        }
+    }
+
+    public static final class NewMedication {
+        private final String name;
+        private final String dosage;
+        private final Schedule schedule;
+        private final String instructions;
+
+        public NewMedication(String name, String dosage, Schedule schedule, String instructions) {
+            this.name = name;
+            this.dosage = dosage;
+            this.schedule = schedule;
+            this.instructions = instructions;
+        }
+    }
+
+    public static final class Result<T> {
+        private final T value;
+        private final String error;
+
+        private Result(T value, String error) {
+            this.value = value;
+            this.error = error;
+        }
+
+        public boolean isOk() {
+            return error == null;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    public static final class Reminder {
+        private final Medication medication;
+        private final List<LocalDateTime> schedules;
+
+        private Reminder(Medication medication, List<LocalDateTime> schedules) {
+            this.medication = medication;
+            this.schedules = schedules;
+        }
+
+        public Medication getMedication() {
+            return medication;
+        }
+
+        public List<LocalDateTime> getSchedules() {
+            return schedules;
+        }
+    }
+
+    // Medication changes older than this are compacted down to the state they left behind.
+    private static final int FULL_HISTORY_DAYS = 366;
+    private static final int MAX_GRACE_MINUTES = 7 * 24 * 60;
+    private static final int RECURRING_LOOKBACK_DAYS = 1;
+    private static final int RECURRING_LOOKAHEAD_DAYS = 7;
+    private static final int MAX_LISTED_OCCURRENCES = 50;
+
+    private static final Metrics METRICS = Metrics.global();
+    private static final Metrics.Counter REMINDERS_FIRED = METRICS.counter("medicare_reminders_fired_total",
+            "Reminders delivered to patients");
+    private static final Metrics.Counter DOSES_OVERDUE = METRICS.counter("medicare_doses_overdue_total",
+            "Reminded doses still not taken when their overdue window ran out");
+    private static final Metrics.Counter DOSES_MISSED = METRICS.counter("medicare_doses_missed_total",
+            "Reminded doses still not taken when their missed window ran out");
+    private static final Metrics.Histogram REMINDER_LATENESS = METRICS.histogram("medicare_reminder_lateness_seconds",
+            "Time from a dose being due to its reminder being delivered");
+    private static final Metrics.Counter INTAKES = METRICS.counter("medicare_intakes_logged_total", "Intakes logged");
+    private static final Metrics.Counter RECORDS_ADDED = METRICS.counter("medicare_records_added_total",
+            "History records added");
+    private static final Metrics.Counter RECORDS_EVICTED = METRICS.counter("medicare_records_evicted_total",
+            "History records pushed out of memory by newer ones");
+    private static final Metrics.Counter RECORDS_DROPPED = METRICS.counter("medicare_records_dropped_total",
+            "Evicted history records that could not be archived and were lost");
+    private static final Metrics.Counter MEDICATIONS_STORED = METRICS.level("medicare_medications_stored",
+            "Medications held, across all patients");
+    private static final Metrics.Counter RECORDS_STORED = METRICS.level("medicare_records_stored",
+            "History records held in memory, across all patients");
+    private static final Metrics.Counter RECORDS_CAPACITY = METRICS.level("medicare_records_capacity",
+            "History records that fit in memory, across all patients");
+    private static final Metrics.Histogram ADD_TIME = commandTimer("add_medication");
+    private static final Metrics.Histogram ADD_BATCH_TIME = commandTimer("add_medications");
+    private static final Metrics.Histogram EDIT_TIME = commandTimer("edit_medication");
+    private static final Metrics.Histogram DELETE_TIME = commandTimer("delete_medication");
+    private static final Metrics.Histogram INTAKE_TIME = commandTimer("log_intake");
+    private static final Metrics.Histogram INTAKE_BATCH_TIME = commandTimer("log_intakes");
+    private static final Metrics.Histogram FEEDBACK_TIME = commandTimer("add_feedback");
+    private static final Metrics.Histogram REMINDERS_TIME = commandTimer("reminders");
+
+    private final MedicationStore medications = new MedicationStore();
+    private final RecordLog records;
+    private final Journal journal;
+    private final ReminderScheduler scheduler;
+    private final ReminderScheduler.Listener reminderListener = this::remind;
+    private final MissedDoseMonitor monitor;
+    // A scheduler or monitor the service made for itself is closed with it.
+    private final boolean ownsScheduler;
+    private final boolean ownsMonitor;
+    private final MissedDoseMonitor.Listener deadlineListener = this::onDeadline;
+    private final Executor executor;
+    private final Clock clock;
+    private final AdherenceTracker adherence;
+    private final MedicationHistory medicationHistory = new MedicationHistory();
+    private volatile InteractionChecker interactions = InteractionChecker.none();
+    // Guarded by stateLock.
+    private InteractionChecker.Regimen regimen;
+    private volatile ReminderScheduler.Listener onReminder = (m, s) -> { };
+    private volatile Consumer<Escalation> onEscalation = e -> { };
+    private volatile Consumer<String> onWarning = w -> { };
+    private volatile boolean closed;
+    private final IOException restoreFailure;
+    private long nextMedicationId = 1;
+    // Held while a change is applied and journaled together, and while a snapshot is taken. One lock per patient
+    // is enough: journal entries must go out in the order changes are applied, so one patient's writers would
+    // queue on the journal anyway, and the sections are short. Reads use published snapshots and never take it,
+    // reminders only take the medication's own lock, and patients never share it. ConcurrencyStress checks this.
+    private final Object stateLock = new Object();
+
+    public MediCareService(int recordCapacity, Path historyArchive, Journal journal) {
+        this(recordCapacity, historyArchive, journal, null, null, ForkJoinPool.commonPool());
+    }
+
+    public MediCareService(int recordCapacity, Path historyArchive, Journal journal,
+            ReminderScheduler scheduler, Executor executor) {
+        this(recordCapacity, historyArchive, journal, scheduler, null, executor);
+    }
+
+    public MediCareService(int recordCapacity, Path historyArchive, Journal journal,
+            ReminderScheduler scheduler, MissedDoseMonitor monitor, Executor executor) {
+        this(recordCapacity, historyArchive, journal, scheduler, monitor, executor,
+                scheduler != null ? scheduler.getClock() : Clock.systemDefaultZone());
+    }
+
+    // A null scheduler or monitor gets one of its own; async commands run on the executor. Every "now" comes
+    // from the clock, and schedules are wall-clock times in its zone; a shared scheduler and monitor must be
+    // on the same clock.
+    public MediCareService(int recordCapacity, Path historyArchive, Journal journal,
+            ReminderScheduler scheduler, MissedDoseMonitor monitor, Executor executor, Clock clock) {
+        this.journal = journal;
+        this.executor = executor;
+        this.clock = clock;
+        adherence = new AdherenceTracker(clock);
+        records = new RecordLog(recordCapacity, historyArchive, clock.getZone(), w -> onWarning.accept(w));
+
+        IOException failure = null;
+        if (journal != null) {
+            try {
+                journal.replay(new Replay(), clock.getZone());
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        restoreFailure = failure;
+
+        regimen = interactions.regimen(medications.snapshot());
+        adherence.recompute(medications.snapshot(), id -> records.index().ofMedication(id));
+        MEDICATIONS_STORED.add(medications.size());
+        RECORDS_CAPACITY.add(records.capacity());
+        RECORDS_STORED.add(records.size());
+
+        ownsMonitor = monitor == null;
+        this.monitor = monitor != null ? monitor : new MissedDoseMonitor(Runnable::run, clock);
+        LocalDateTime now = LocalDateTime.now(clock);
+        for (Medication m : medications.snapshot()) {
+            for (LocalDateTime schedule : m.getRemindedSchedules()) {
+                if (!m.isTaken(schedule)) watchGraceWindows(m, schedule, now, false);
+            }
+        }
+        ownsScheduler = scheduler == null;
+        this.scheduler = scheduler != null ? scheduler : new ReminderScheduler(Runnable::run, clock);
+        for (Medication m : medications.snapshot()) this.scheduler.schedule(m, reminderListener);
+    }
+
+    // Called after a due reminder has been journaled and recorded.
+    public void setReminderListener(ReminderScheduler.Listener listener) {
+        onReminder = listener != null ? listener : (m, s) -> { };
+    }
+
+    // Called when a reminded dose turns overdue and again when it turns missed, unless it is taken first.
+    public void setEscalationListener(Consumer<Escalation> listener) {
+        onEscalation = listener != null ? listener : e -> { };
+    }
+
+    // Called when history cannot be archived; the journal reports to whoever opened it.
+    public void setWarningListener(Consumer<String> listener) {
+        onWarning = listener != null ? listener : w -> { };
+    }
+
+    // Every add and edit is checked against the rest of the regimen from then on. Contraindicated
+    // combinations are refused; milder ones go through and are noted in the history.
+    public void setInteractionChecker(InteractionChecker checker) {
+        synchronized (stateLock) {
+            interactions = checker != null ? checker : InteractionChecker.none();
+            regimen = interactions.regimen(medications.snapshot());
+        }
+    }
+
+    public Medication addMedication(String name, String dosage, String schedules, String instructions)
+            throws InvalidMedicationException {
+        if (schedules == null || schedules.trim().isEmpty()) {
+            throw new InvalidMedicationException("At least one schedule is required");
+        }
+        return addMedication(name, dosage, parseSchedule(schedules.trim()), instructions);
+    }
+
+    public Medication addMedication(String name, String dosage, Schedule schedule, String instructions)
+            throws InvalidMedicationException {
+        long start = System.nanoTime();
+        try {
+            synchronized (stateLock) {
+                Medication med = insert(name, dosage, schedule, instructions);
+                scheduler.schedule(med, reminderListener);
+                return med;
+            }
+        } finally {
+            ADD_TIME.record(System.nanoTime() - start);
+        }
+    }
+
+    // Validates and adds the whole batch under one lock; a bad entry fails on its own.
+    public List<Result<Medication>> addMedications(List<NewMedication> batch) {
+        long start = System.nanoTime();
+        List<Result<Medication>> results = new ArrayList<>(batch.size());
+        synchronized (stateLock) {
+            for (NewMedication m : batch) {
+                try {
+                    Medication med = insert(m.name, m.dosage, m.schedule, m.instructions);
+                    scheduler.schedule(med, reminderListener);
+                    results.add(new Result<>(med, null));
+                } catch (InvalidMedicationException e) {
+                    results.add(new Result<>(null, e.getMessage()));
+                }
+            }
+        }
+        checkpoint();
+        ADD_BATCH_TIME.record(System.nanoTime() - start);
+        return results;
+    }
+
+    // Null or blank arguments keep the current value.
+    public Medication editMedication(long id, String name, String dosage, String schedules, String instructions)
+            throws InvalidMedicationException {
+        long start = System.nanoTime();
+        try {
+            Medication med;
+            synchronized (stateLock) {
+                // Looked up under the lock, so an edit racing a delete fails instead of bringing the medication back.
+                med = medication(id);
+                // Parsed under the lock so edits apply in the order of their anchors: an older anchor applied last
+                // would bring back doses a newer schedule dropped, and remind them again.
+                Schedule schedule = isBlank(schedules) ? null : parseSchedule(schedules.trim());
+                if (schedule != null && schedule.size() == 0) schedule = null;
+                if (!isBlank(name) || schedule != null) {
+                    screen(isBlank(name) ? med.getName() : name.trim(), schedule != null ? schedule : med.getSchedule(), id);
+                    regimen.remove(med);
+                }
+                if (!isBlank(name)) medications.rename(med, name.trim());
+                if (!isBlank(dosage)) med.setDosage(dosage.trim());
+                if (schedule != null) med.setSchedule(schedule);
+                if (!isBlank(instructions)) med.setInstructions(instructions.trim());
+                if (!isBlank(name) || schedule != null) regimen.add(med);
+                LocalDateTime at = LocalDateTime.now(clock);
+                medicationHistory.edited(med, at);
+                if (journal != null) journal.medicationEdited(med, at);
+                scheduler.schedule(med, reminderListener);
+            }
+            compactHistoryIfDue();
+            addRecord(new ReminderRecord(now(), "Edited medication: " + med.getName()));
+            return med;
+        } finally {
+            EDIT_TIME.record(System.nanoTime() - start);
+        }
+    }
+
+    public Medication deleteMedication(long id) throws InvalidMedicationException {
+        long start = System.nanoTime();
+        try {
+            Medication med;
+            synchronized (stateLock) {
+                med = medication(id);
+                medications.remove(med);
+                // Medications are only armed under the lock while they are stored, so nothing can re-arm it now.
+                scheduler.cancel(med);
+                regimen.remove(med);
+                LocalDateTime at = LocalDateTime.now(clock);
+                medicationHistory.deleted(med.getId(), at);
+                if (journal != null) journal.medicationDeleted(med.getId(), at);
+            }
+            compactHistoryIfDue();
+            MEDICATIONS_STORED.add(-1);
+            adherence.medicationRemoved(med.getId());
+            addRecord(new ReminderRecord(now(), "Deleted medication: " + med.getName()));
+            return med;
+        } finally {
+            DELETE_TIME.record(System.nanoTime() - start);
+        }
+    }
+
+    public Medication setGraceWindows(long id, int overdueAfterMinutes, int missedAfterMinutes)
+            throws InvalidMedicationException {
+        if (overdueAfterMinutes < 1) throw new InvalidMedicationException("Overdue window must be at least a minute");
+        if (missedAfterMinutes <= overdueAfterMinutes) {
+            throw new InvalidMedicationException("Missed window must be longer than the overdue window");
+        }
+        if (missedAfterMinutes > MAX_GRACE_MINUTES) throw new InvalidMedicationException("Missed window cannot exceed a week");
+        Medication med = medication(id);
+        synchronized (stateLock) {
+            med.setGraceWindows(overdueAfterMinutes, missedAfterMinutes);
+            if (journal != null) journal.graceWindowsChanged(med);
+        }
+        return med;
+    }
+
+    public MedicationRecord logIntake(long id, LocalDateTime schedule, String note) throws InvalidMedicationException {
+        long start = System.nanoTime();
+        try {
+            MedicationRecord record;
+            synchronized (stateLock) {
+                record = applyIntake(medication(id), schedule, note);
+            }
+            checkpoint();
+            return record;
+        } finally {
+            INTAKE_TIME.record(System.nanoTime() - start);
+        }
+    }
+
+    // Applies the whole batch under one lock; a bad entry fails on its own without stopping the rest.
+    public List<Result<MedicationRecord>> logIntakes(List<Intake> intakes) {
+        long start = System.nanoTime();
+        List<Result<MedicationRecord>> results = new ArrayList<>(intakes.size());
+        synchronized (stateLock) {
+            for (Intake intake : intakes) {
+                try {
+                    Medication med = medication(intake.getMedicationId());
+                    results.add(new Result<>(applyIntake(med, intake.getSchedule(), intake.getNote()), null));
+                } catch (InvalidMedicationException e) {
+                    results.add(new Result<>(null, e.getMessage()));
+                }
+            }
+        }
+        checkpoint();
+        INTAKE_BATCH_TIME.record(System.nanoTime() - start);
+        return results;
+    }
+
+    public FeedbackRecord addFeedback(String feeling, String symptoms) {
+        long start = System.nanoTime();
+        String notes = "Feeling: " + (isBlank(feeling) ? "Not specified" : feeling.trim());
+        if (!isBlank(symptoms)) notes += " | Symptoms: " + symptoms.trim();
+        FeedbackRecord record = new FeedbackRecord(now(), "Patient wellness feedback", notes);
+        addRecord(record);
+        FEEDBACK_TIME.record(System.nanoTime() - start);
+        return record;
+    }
+
+    // Untaken schedules per medication, in list order; viewing them is itself recorded.
+    public List<Reminder> reminders() {
+        long start = System.nanoTime();
+        List<Reminder> reminders = new ArrayList<>();
+        for (Medication m : medications.snapshot()) {
+            List<LocalDateTime> untaken = new ArrayList<>();
+            for (LocalDateTime schedule : selectableSchedules(m)) {
+                if (!m.isTaken(schedule)) untaken.add(schedule);
+            }
+            reminders.add(new Reminder(m, untaken));
+        }
+        addRecord(new ReminderRecord(now(), "Viewed reminders."));
+        REMINDERS_TIME.record(System.nanoTime() - start);
+        return reminders;
+    }
+
+    public <T> CompletableFuture<T> submit(Command<T> command) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return command.apply(this);
+            } catch (InvalidMedicationException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    public CompletableFuture<Medication> addMedicationAsync(String name, String dosage, String schedules,
+            String instructions) {
+        return submit(s -> s.addMedication(name, dosage, schedules, instructions));
+    }
+
+    public CompletableFuture<MedicationRecord> logIntakeAsync(long id, LocalDateTime schedule, String note) {
+        return submit(s -> s.logIntake(id, schedule, note));
+    }
+
+    public CompletableFuture<List<Result<MedicationRecord>>> logIntakesAsync(List<Intake> intakes) {
+        return submit(s -> s.logIntakes(intakes));
+    }
+
+    // Counters are maintained as doses are reminded and taken; reading a snapshot is constant time.
+    public AdherenceTracker.Snapshot adherence() {
+        return adherence.snapshot();
+    }
+
+    public AdherenceTracker.Snapshot adherence(Medication medication) {
+        return adherence.snapshot(medication.getId());
+    }
+
+    // Full rebuild from the flags and intake history, spread over the fork/join pool.
+    public void recomputeAdherence() {
+        adherence.recompute(medications.snapshot(), id -> records.index().ofMedication(id));
+    }
+
+    public Medication[] medications() {
+        return medications.snapshot();
+    }
+
+    // What a stored medication conflicts with among the others.
+    public List<InteractionChecker.Finding> interactionsOf(long id) throws InvalidMedicationException {
+        Medication med = medication(id);
+        synchronized (stateLock) {
+            return regimen.check(med.getName(), med.getSchedule(), id, LocalDateTime.now(clock));
+        }
+    }
+
+    // Every conflict in the whole regimen, each pair once.
+    public List<InteractionChecker.Finding> reviewInteractions() {
+        return interactions.review(medications.snapshot(), LocalDateTime.now(clock));
+    }
+
+    public boolean hasInteractionData() {
+        return interactions.drugCount() > 0;
+    }
+
+    public int medicationCount() {
+        return medications.size();
+    }
+
+    public Medication findMedication(long id) {
+        return medications.find(id);
+    }
+
+    // Null when the medication did not exist at that time or had been deleted by then.
+    public MedicationHistory.Version medicationAsOf(long id, LocalDateTime at) {
+        return medicationHistory.versionAt(id, at);
+    }
+
+    public List<MedicationHistory.Version> medicationsAsOf(LocalDateTime at) {
+        return medicationHistory.asOf(at);
+    }
+
+    // Every change made to a medication, deleted ones included, oldest first.
+    public List<MedicationHistory.Version> medicationChanges(long id) {
+        return medicationHistory.changes(id);
+    }
+
+    // Exact name, ignoring case.
+    public List<Medication> findMedicationsByName(String name) {
+        return medications.findByName(name);
+    }
+
+    // Names starting with prefix, ignoring case, in name order.
+    public List<Medication> searchMedications(String prefix, int limit) {
+        return medications.search(prefix, limit);
+    }
+
+    // Names within a typo or two of text, closest first.
+    public List<Medication> suggestMedications(String text, int limit) {
+        return medications.suggest(text, limit);
+    }
+
+    // Recurring schedules are open-ended, so only occurrences near the present are offered.
+    public List<LocalDateTime> selectableSchedules(Medication m) {
+        if (!m.isRecurring()) return m.getSchedules();
+        LocalDateTime now = LocalDateTime.now(clock);
+        List<LocalDateTime> window = new ArrayList<>();
+        Iterator<LocalDateTime> it = m.occurrences(now.minusDays(RECURRING_LOOKBACK_DAYS), now.plusDays(RECURRING_LOOKAHEAD_DAYS));
+        while (it.hasNext() && window.size() < MAX_LISTED_OCCURRENCES) window.add(it.next());
+        return window;
+    }
+
+    public NavigableMap<RecordIndex.Key, Record> history() {
+        return records.index().all();
+    }
+
+    public NavigableMap<RecordIndex.Key, Record> feedback() {
+        return records.index().ofType(FeedbackRecord.class);
+    }
+
+    public int recordCount() {
+        return records.size();
+    }
+
+    public long archivedRecordCount() {
+        return records.evictedCount();
+    }
+
+    public Path getHistoryArchive() {
+        return records.getSpillFile();
+    }
+
+    // Why the journal could not be replayed, or null. The service then starts from whatever was read before.
+    public IOException getRestoreFailure() {
+        return restoreFailure;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public Collection<Record> findRecords(LocalDateTime from, LocalDateTime to) {
+        return RecordIndex.between(records.index().all(), from, to, clock.getZone()).values();
+    }
+
+    public Collection<Record> findRecords(Class<? extends Record> type, LocalDateTime from, LocalDateTime to) {
+        return RecordIndex.between(records.index().ofType(type), from, to, clock.getZone()).values();
+    }
+
+    public Collection<Record> findIntakes(Medication medication, LocalDateTime from, LocalDateTime to) {
+        return RecordIndex.between(records.index().ofMedication(medication.getId()), from, to, clock.getZone())
+                .values();
+    }
+
+    public void close() {
+        closed = true;
+        for (Medication m : medications.snapshot()) scheduler.cancel(m);
+        if (ownsScheduler) scheduler.close();
+        if (ownsMonitor) monitor.close();
+        if (journal != null) {
+            synchronized (stateLock) {
+                journal.snapshot(medicationHistory, medications.snapshot(), records);
+            }
+            journal.close();
+        }
+        MEDICATIONS_STORED.add(-medications.size());
+        RECORDS_CAPACITY.add(-records.capacity());
+        RECORDS_STORED.add(-records.size());
+        records.close();
+    }
+
+    public Schedule parseSchedule(CharSequence input) throws InvalidMedicationException {
+        int i = 0;
+        while (i < input.length() && Character.isWhitespace(input.charAt(i))) i++;
+        if (i < input.length() && Character.isLetter(input.charAt(i))) {
+            String rule = input.toString();
+            if (RecurringSchedule.isRule(rule)) return RecurringSchedule.parse(rule, LocalDateTime.now(clock));
+        }
+        return FixedSchedule.parse(input, LocalDateTime.now(clock));
+    }
+
+    public List<LocalDateTime> parseSchedules(String input) throws InvalidMedicationException {
+        FixedSchedule parsed = FixedSchedule.parse(input, LocalDateTime.now(clock));
+        List<LocalDateTime> schedules = new ArrayList<>(parsed.size());
+        for (long minute : parsed.getMinutes()) schedules.add(Medication.fromEpochMinute(minute));
+        return schedules;
+    }
+
+    private void remind(Medication m, LocalDateTime schedule) {
+        if (closed || medications.find(m.getId()) != m) return;
+        if (journal != null) journal.scheduleReminded(m.getId(), schedule);
+        long lateNanos = Duration.between(Timestamps.toInstant(schedule, clock.getZone()), clock.instant()).toNanos();
+        REMINDERS_FIRED.inc();
+        REMINDER_LATENESS.record(lateNanos);
+        adherence.doseDue(m, schedule);
+        addRecord(new ReminderRecord(now(), "Medication reminder for " + m.getName() + " at " + Timestamps.minute(schedule)));
+        watchGraceWindows(m, schedule, LocalDateTime.now(clock), true);
+        onReminder.onDue(m, schedule);
+    }
+
+    // A dose reminded only now, after downtime, may already be past both windows; it is escalated as missed
+    // straight away. One reminded before a restart is only watched for the windows still open.
+    private void watchGraceWindows(Medication m, LocalDateTime schedule, LocalDateTime now, boolean justReminded) {
+        LocalDateTime overdue = schedule.plusMinutes(m.getOverdueAfterMinutes());
+        LocalDateTime missed = schedule.plusMinutes(m.getMissedAfterMinutes());
+        if (!missed.isAfter(now)) {
+            if (justReminded) monitor.watch(m, schedule, Escalation.Stage.MISSED, now, deadlineListener);
+        } else if (overdue.isAfter(now) || justReminded) {
+            monitor.watch(m, schedule, Escalation.Stage.OVERDUE, overdue, deadlineListener);
+        } else {
+            monitor.watch(m, schedule, Escalation.Stage.MISSED, missed, deadlineListener);
+        }
+    }
+
+    private void onDeadline(Medication m, LocalDateTime schedule, Escalation.Stage stage) {
+        if (closed || medications.find(m.getId()) != m || m.isTaken(schedule)
+                || m.getSchedule().ordinalOf(Medication.toEpochMinute(schedule)) < 0) {
+            return;
+        }
+        if (stage == Escalation.Stage.OVERDUE) {
+            DOSES_OVERDUE.inc();
+            monitor.watch(m, schedule, Escalation.Stage.MISSED, schedule.plusMinutes(m.getMissedAfterMinutes()), deadlineListener);
+        } else {
+            DOSES_MISSED.inc();
+            adherence.doseMissed(m, schedule);
+            addRecord(new ReminderRecord(now(), "Missed dose: " + m.getName() + " at " + Timestamps.minute(schedule)));
+        }
+        onEscalation.accept(new Escalation(stage, m.getId(), m.getName(), m.getDosage(), schedule, LocalDateTime.now(clock)));
+    }
+
+    // Caller holds stateLock.
+    private Medication insert(String name, String dosage, Schedule schedule, String instructions)
+            throws InvalidMedicationException {
+        name = trim(name);
+        dosage = trim(dosage);
+        instructions = trim(instructions);
+        if (name.isEmpty()) throw new InvalidMedicationException("Name cannot be empty");
+        if (dosage.isEmpty()) throw new InvalidMedicationException("Dosage cannot be empty");
+        if (schedule == null || schedule.size() == 0) throw new InvalidMedicationException("Invalid schedule format");
+        if (instructions.isEmpty()) throw new InvalidMedicationException("Follow the doctor's instructions");
+        screen(name, schedule, -1);
+
+        Medication med = new Medication(nextMedicationId++, name, dosage, schedule, instructions);
+        medications.add(med);
+        regimen.add(med);
+        MEDICATIONS_STORED.inc();
+        LocalDateTime at = LocalDateTime.now(clock);
+        medicationHistory.added(med, at);
+        if (journal != null) journal.medicationAdded(med, at);
+        return med;
+    }
+
+    // Caller holds stateLock.
+    private void screen(String name, Schedule schedule, long exceptId) throws InvalidMedicationException {
+        List<InteractionChecker.Finding> findings = regimen.check(name, schedule, exceptId, LocalDateTime.now(clock));
+        for (InteractionChecker.Finding f : findings) {
+            if (f.getSeverity() == InteractionChecker.Severity.CONTRAINDICATED) throw new InvalidMedicationException(f.toString());
+        }
+        for (InteractionChecker.Finding f : findings) storeRecord(new ReminderRecord(now(), "Interaction warning: " + f));
+    }
+
+    // Caller holds stateLock.
+    private MedicationRecord applyIntake(Medication med, LocalDateTime schedule, String note)
+            throws InvalidMedicationException {
+        int ordinal = schedule == null ? -1 : med.getSchedule().ordinalOf(Medication.toEpochMinute(schedule));
+        if (ordinal < 0) throw new InvalidMedicationException("No such schedule for " + med.getName());
+        boolean alreadyTaken = med.isTaken(ordinal);
+        LocalDateTime loggedAt = LocalDateTime.now(clock);
+        String desc = isBlank(note) ? "Taken" : note.trim();
+        MedicationRecord record = new MedicationRecord(clock.instant().getEpochSecond(),
+                desc + " at " + Timestamps.minute(schedule), med, schedule);
+        storeRecord(record);
+        INTAKES.inc();
+        med.addTakenSchedule(schedule);
+        if (journal != null) journal.scheduleTaken(med.getId(), schedule);
+        if (!alreadyTaken) adherence.doseTaken(med, schedule, loggedAt);
+        scheduler.schedule(med, reminderListener);
+        return record;
+    }
+
+    private Medication medication(long id) throws InvalidMedicationException {
+        Medication med = medications.find(id);
+        if (med == null) throw new InvalidMedicationException("No medication with id " + id);
+        return med;
+    }
+
+    private void addRecord(Record r) {
+        synchronized (stateLock) {
+            storeRecord(r);
+        }
+        checkpoint();
+    }
+
+    // Caller holds stateLock.
+    private void storeRecord(Record r) {
+        boolean full = records.size() == records.capacity();
+        boolean archived = records.add(r);
+        RECORDS_ADDED.inc();
+        if (full) {
+            RECORDS_EVICTED.inc();
+            if (!archived) RECORDS_DROPPED.inc();
+        } else {
+            RECORDS_STORED.inc();
+        }
+        if (journal != null) journal.recordAdded(r);
+    }
+
+    private static Metrics.Histogram commandTimer(String command) {
+        return METRICS.histogram("medicare_command_seconds", "Time spent in each service command",
+                "command=\"" + command + "\"");
+    }
+
+    private void checkpoint() {
+        if (journal == null || !journal.snapshotDue()) return;
+        synchronized (stateLock) {
+            journal.snapshot(medicationHistory, medications.snapshot(), records);
+        }
+    }
+
+    // Compaction runs on the executor so the command that tipped it over does not wait for it.
+    private void compactHistoryIfDue() {
+        if (!medicationHistory.compactionDue()) return;
+        executor.execute(() -> medicationHistory.compact(LocalDateTime.now(clock).minusDays(FULL_HISTORY_DAYS)));
+    }
+
+    private long now() {
+        return clock.instant().getEpochSecond();
+    }
+
+    private static String trim(String s) {
+        return s == null ? "" : s.trim();
+    }
+
+    private static boolean isBlank(String s) {
+        return s == null || s.trim().isEmpty();
+    }
+
+    private class Replay implements Journal.Replayer {
+        public void medicationAdded(long id, String name, String dosage, Schedule schedule, String instructions,
+                LocalDateTime at) {
+            if (medications.find(id) != null) {
+                medicationEdited(id, name, dosage, schedule, instructions, at);
+                return;
+            }
+            Medication m = new Medication(id, name, dosage, schedule, instructions);
+            medications.add(m);
+            medicationHistory.added(m, at);
+            nextMedicationId = Math.max(nextMedicationId, id + 1);
+        }
+
+        public void medicationEdited(long id, String name, String dosage, Schedule schedule, String instructions,
+                LocalDateTime at) {
+            Medication m = medications.find(id);
+            if (m == null) return;
+            medications.rename(m, name);
+            m.setDosage(dosage);
+            m.setSchedule(schedule);
+            m.setInstructions(instructions);
+            medicationHistory.edited(m, at);
+        }
+
+        public void medicationDeleted(long id, LocalDateTime at) {
+            Medication m = medications.find(id);
+            if (m == null) return;
+            medications.remove(m);
+            medicationHistory.deleted(id, at);
+        }
+
+        public void scheduleTaken(long id, LocalDateTime schedule) {
+            Medication m = medications.find(id);
+            if (m != null) m.addTakenSchedule(schedule);
+        }
+
+        public void scheduleReminded(long id, LocalDateTime schedule) {
+            Medication m = medications.find(id);
+            if (m != null) m.addRemindedSchedule(schedule);
+        }
+
+        public void recordAdded(Record record) {
+            records.restore(record);
+        }
+
+        public void graceWindowsChanged(long id, int overdueAfterMinutes, int missedAfterMinutes) {
+            Medication m = medications.find(id);
+            if (m != null) m.setGraceWindows(overdueAfterMinutes, missedAfterMinutes);
+        }
+    }
+}
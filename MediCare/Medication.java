@@ -1,27 +1,84 @@
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.HashSet;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.AbstractList;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 import java.util.Set;
 
 public class Medication {
-    private String name;
-    private String dosage;
-    private List<LocalDateTime> schedules;
-    private String instructions;
-    private Set<LocalDateTime> remindedSchedules = new HashSet<>();
-    private Set<LocalDateTime> takenSchedules = new HashSet<>();  
+    public static final int DEFAULT_OVERDUE_MINUTES = 30;
+    public static final int DEFAULT_MISSED_MINUTES = 240;
 
-    private static final DateTimeFormatter FORMATTER =
-            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    private final long id;
+    private volatile String name;
+    private volatile String dosage;
+    private volatile String instructions;
+    // Minutes after a reminded dose is due before, still untaken, it counts as overdue and then as missed.
+    private volatile int overdueAfterMinutes = DEFAULT_OVERDUE_MINUTES;
+    private volatile int missedAfterMinutes = DEFAULT_MISSED_MINUTES;
 
-    public Medication(String name, String dosage, List<LocalDateTime> schedules, String instructions) {
+    // Flags are indexed by occurrence ordinal, so a recurring schedule only grows them as time passes.
+    private Schedule schedule;
+    private BitSet reminded = new BitSet();
+    private BitSet taken = new BitSet();
+    // Set wherever reminded or taken is, so the next pending schedule is one nextClearBit away.
+    private BitSet done = new BitSet();
+
+    // What toString() and getSchedulesString() last rendered, and from which values. An edit makes the values
+    // differ, so the next call renders again; a rename keeps the schedule string, which is the costly part.
+    private static final class Display {
+        private final String name;
+        private final String dosage;
+        private final String instructions;
+        private final Schedule schedule;
+        private final String schedules;
+        private final String text;
+
+        Display(String name, String dosage, String instructions, Schedule schedule, String schedules) {
+            this.name = name;
+            this.dosage = dosage;
+            this.instructions = instructions;
+            this.schedule = schedule;
+            this.schedules = schedules;
+            text = new StringBuilder(48 + schedules.length()).append("Name: ").append(name)
+                    .append(" | Dosage: ").append(dosage).append(" | Schedules: ").append(schedules)
+                    .append(" | Instructions: ").append(instructions).toString();
+        }
+    }
+
+    private volatile Display display;
+
+    public Medication(long id, String name, String dosage, List<LocalDateTime> schedules, String instructions) {
+        this(id, name, dosage, new FixedSchedule(schedules), instructions);
+    }
+
+    public Medication(long id, String name, String dosage, Schedule schedule, String instructions) {
+        this.id = id;
         this.name = name;
         this.dosage = dosage;
-        this.schedules = schedules;
+        this.schedule = schedule;
         this.instructions = instructions;
     }
 
+    public static long toEpochMinute(LocalDateTime t) {
+        return Math.floorDiv(t.toEpochSecond(ZoneOffset.UTC), 60);
+    }
+
+    public static LocalDateTime fromEpochMinute(long minute) {
+        return LocalDateTime.ofEpochSecond(minute * 60, 0, ZoneOffset.UTC);
+    }
+
+    public long getId() {
+        return id;
+    }
+
     public String getName() {
         return name;
     }
@@ -38,19 +95,78 @@ public class Medication {
         this.dosage = dosage;
     }
 
-    public List<LocalDateTime> getSchedules() {
-        return schedules;
+    // For a recurring schedule this is a lazy view whose size may be Integer.MAX_VALUE; prefer occurrences().
+    public synchronized List<LocalDateTime> getSchedules() {
+        return new ScheduleList(schedule);
     }
 
     public void setSchedules(List<LocalDateTime> schedules) {
-        this.schedules = schedules;
+        setSchedule(new FixedSchedule(schedules));
+    }
+
+    public synchronized Schedule getSchedule() {
+        return schedule;
+    }
+
+    public synchronized void setSchedule(Schedule newSchedule) {
+        reminded = remap(reminded, schedule, newSchedule);
+        taken = remap(taken, schedule, newSchedule);
+        schedule = newSchedule;
+        done = (BitSet) reminded.clone();
+        done.or(taken);
+        display = null;
+    }
+
+    public synchronized boolean isRecurring() {
+        return schedule instanceof RecurringSchedule;
+    }
+
+    public synchronized int getScheduleCount() {
+        return schedule.size();
+    }
+
+    // Lazily walks the occurrences in [from, to]; either bound may be null.
+    public Iterator<LocalDateTime> occurrences(LocalDateTime from, LocalDateTime to) {
+        Schedule current = getSchedule();
+        int first = from == null ? 0 : current.ceilingOrdinal(toEpochMinute(from));
+        long last = to == null ? Long.MAX_VALUE : toEpochMinute(to);
+        return new Iterator<LocalDateTime>() {
+            private int next = first;
+
+            public boolean hasNext() {
+                return next < current.size() && current.minuteAt(next) <= last;
+            }
+
+            public LocalDateTime next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return fromEpochMinute(current.minuteAt(next++));
+            }
+        };
+    }
+
+    public synchronized boolean isTaken(LocalDateTime schedule) {
+        int ordinal = this.schedule.ordinalOf(toEpochMinute(schedule));
+        return ordinal >= 0 && taken.get(ordinal);
+    }
+
+    public synchronized boolean isReminded(int index) {
+        return reminded.get(index);
+    }
+
+    public synchronized boolean isTaken(int index) {
+        return taken.get(index);
     }
 
     public String getSchedulesString() {
-        StringBuilder sb = new StringBuilder();
-        for (LocalDateTime schedule : schedules) {
-            if (sb.length() > 0) sb.append(", ");
-            sb.append(schedule.format(FORMATTER));
+        return display().schedules;
+    }
+
+    static String toString(Schedule schedule) {
+        if (schedule instanceof RecurringSchedule) return schedule.toString();
+        StringBuilder sb = new StringBuilder(schedule.size() * 18);
+        for (int i = 0; i < schedule.size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(Timestamps.minute(schedule.minuteAt(i)));
         }
         return sb.toString();
     }
@@ -63,21 +179,165 @@ public class Medication {
         this.instructions = instructions;
     }
 
-    public Set<LocalDateTime> getRemindedSchedules() {
-        return remindedSchedules;
+    public int getOverdueAfterMinutes() {
+        return overdueAfterMinutes;
+    }
+
+    public int getMissedAfterMinutes() {
+        return missedAfterMinutes;
+    }
+
+    public void setGraceWindows(int overdueAfterMinutes, int missedAfterMinutes) {
+        this.overdueAfterMinutes = overdueAfterMinutes;
+        this.missedAfterMinutes = missedAfterMinutes;
+    }
+
+    // Ordinals that have been reminded or taken.
+    public synchronized BitSet getDoneOrdinals() {
+        return (BitSet) done.clone();
+    }
+
+    public synchronized Set<LocalDateTime> getRemindedSchedules() {
+        return new FlagSet(schedule, (BitSet) reminded.clone());
+    }
+    public synchronized void addRemindedSchedule(LocalDateTime schedule) {
+        int index = this.schedule.ordinalOf(toEpochMinute(schedule));
+        if (index < 0) return;
+        reminded.set(index);
+        done.set(index);
+    }
+    public synchronized Set<LocalDateTime> getTakenSchedules() {
+        return new FlagSet(schedule, (BitSet) taken.clone());
+    }
+    public synchronized void addTakenSchedule(LocalDateTime schedule) {
+        int index = this.schedule.ordinalOf(toEpochMinute(schedule));
+        if (index < 0) return;
+        taken.set(index);
+        done.set(index);
+    }
+
+    // Marks the next pending schedule reminded and returns it, if it is due by now in the zone; otherwise null.
+    // Checking and marking under one lock means two concurrent fires cannot both claim the same dose.
+    public synchronized LocalDateTime claimDueSchedule(Instant now, ZoneId zone) {
+        int index = done.nextClearBit(0);
+        if (index >= schedule.size()) return null;
+        LocalDateTime due = fromEpochMinute(schedule.minuteAt(index));
+        if (Timestamps.toInstant(due, zone).isAfter(now)) return null;
+        reminded.set(index);
+        done.set(index);
+        return due;
     }
-    public void addRemindedSchedule(LocalDateTime schedule) {
-        remindedSchedules.add(schedule);
+
+    public synchronized LocalDateTime nextPendingSchedule() {
+        int index = done.nextClearBit(0);
+        return index < schedule.size() ? fromEpochMinute(schedule.minuteAt(index)) : null;
     }
-    public Set<LocalDateTime> getTakenSchedules() {
-        return takenSchedules;
+
+    public synchronized LocalDateTime nextUntakenSchedule(LocalDateTime from) {
+        int index = taken.nextClearBit(schedule.ceilingOrdinal(toEpochMinute(from)));
+        return index < schedule.size() ? fromEpochMinute(schedule.minuteAt(index)) : null;
     }
-    public void addTakenSchedule(LocalDateTime schedule) {
-        takenSchedules.add(schedule);
+
+    // The untaken occurrences at or after the epoch minute, as a schedule of their own; empty if none are left.
+    // A rule restarts at its first untaken occurrence, so a dose taken early after that one is kept as pending.
+    public synchronized Schedule pendingSchedule(long fromMinute) {
+        int first = taken.nextClearBit(schedule.ceilingOrdinal(fromMinute));
+        if (first >= schedule.size()) return new FixedSchedule(new long[0]);
+        long start = schedule.minuteAt(first);
+        if (schedule instanceof RecurringSchedule) {
+            RecurringSchedule rule = (RecurringSchedule) schedule;
+            int[] offsets = rule.getOffsets();
+            // "every" rules are anchored at their first occurrence, "daily" ones at midnight.
+            long anchor = offsets.length == 1 && offsets[0] == 0 ? start : start - Math.floorMod(start, 24 * 60);
+            return new RecurringSchedule(anchor, rule.getPeriod(), offsets, start, rule.getUntil());
+        }
+        long[] minutes = new long[schedule.size() - first];
+        int n = 0;
+        for (int i = first; i < schedule.size(); i++) {
+            if (!taken.get(i)) minutes[n++] = schedule.minuteAt(i);
+        }
+        return new FixedSchedule(Arrays.copyOf(minutes, n));
     }
 
     public String toString() {
-        return String.format("Name: %s | Dosage: %s | Schedules: %s | Instructions: %s",
-                name, dosage, getSchedulesString(), instructions);
+        return display().text;
+    }
+
+    private Display display() {
+        Schedule schedule = getSchedule();
+        String name = this.name;
+        String dosage = this.dosage;
+        String instructions = this.instructions;
+        Display d = display;
+        if (d != null && d.schedule == schedule && d.name == name && d.dosage == dosage && d.instructions == instructions) {
+            return d;
+        }
+        String schedules = d != null && d.schedule == schedule ? d.schedules : toString(schedule);
+        d = new Display(name, dosage, instructions, schedule, schedules);
+        display = d;
+        return d;
+    }
+
+    static BitSet remap(BitSet flags, Schedule from, Schedule to) {
+        BitSet remapped = new BitSet();
+        for (int i = flags.nextSetBit(0); i >= 0 && i < from.size(); i = flags.nextSetBit(i + 1)) {
+            int ordinal = to.ordinalOf(from.minuteAt(i));
+            if (ordinal >= 0) remapped.set(ordinal);
+        }
+        return remapped;
+    }
+
+    private static class ScheduleList extends AbstractList<LocalDateTime> implements RandomAccess {
+        private final Schedule schedule;
+
+        ScheduleList(Schedule schedule) {
+            this.schedule = schedule;
+        }
+
+        public LocalDateTime get(int index) {
+            if (index < 0 || index >= schedule.size()) throw new IndexOutOfBoundsException(index);
+            return fromEpochMinute(schedule.minuteAt(index));
+        }
+
+        public int size() {
+            return schedule.size();
+        }
+    }
+
+    private static class FlagSet extends AbstractSet<LocalDateTime> {
+        private final Schedule schedule;
+        private final BitSet flags;
+
+        FlagSet(Schedule schedule, BitSet flags) {
+            this.schedule = schedule;
+            this.flags = flags;
+        }
+
+        public boolean contains(Object o) {
+            if (!(o instanceof LocalDateTime)) return false;
+            int index = schedule.ordinalOf(toEpochMinute((LocalDateTime) o));
+            return index >= 0 && flags.get(index);
+        }
+
+        public int size() {
+            return flags.cardinality();
+        }
+
+        public Iterator<LocalDateTime> iterator() {
+            return new Iterator<LocalDateTime>() {
+                private int next = flags.nextSetBit(0);
+
+                public boolean hasNext() {
+                    return next >= 0 && next < schedule.size();
+                }
+
+                public LocalDateTime next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    LocalDateTime value = fromEpochMinute(schedule.minuteAt(next));
+                    next = flags.nextSetBit(next + 1);
+                    return value;
+                }
+            };
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,278 @@
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+// Every change to a medication as an immutable event, so its name, dosage, instructions and schedule can be
+// read back as of any moment. Events only hold the fields that changed; every CHECKPOINT_EVERY events a
+// timeline also keeps the full version, so answering any point in time replays at most that many events.
+public class MedicationHistory {
+    public enum Change { ADDED, EDITED, DELETED }
+
+    private static final int CHECKPOINT_EVERY = 16;
+    private static final int COMPACT_AFTER = 4096;
+    // Events journaled before they carried a time; they count as having happened before anything else.
+    private static final long UNKNOWN_TIME = Long.MIN_VALUE;
+
+    // A medication as it stood after one change.
+    public static final class Version {
+        private final long medicationId;
+        private final Change change;
+        private final long at;
+        private final String name;
+        private final String dosage;
+        private final String instructions;
+        private final Schedule schedule;
+
+        private Version(long medicationId, Change change, long at, String name, String dosage,
+                String instructions, Schedule schedule) {
+            this.medicationId = medicationId;
+            this.change = change;
+            this.at = at;
+            this.name = name;
+            this.dosage = dosage;
+            this.instructions = instructions;
+            this.schedule = schedule;
+        }
+
+        public long getMedicationId() {
+            return medicationId;
+        }
+
+        public Change getChange() {
+            return change;
+        }
+
+        // Null when the change was journaled before changes carried a time.
+        public LocalDateTime getTime() {
+            return at == UNKNOWN_TIME ? null : LocalDateTime.ofEpochSecond(at, 0, ZoneOffset.UTC);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDosage() {
+            return dosage;
+        }
+
+        public String getInstructions() {
+            return instructions;
+        }
+
+        public Schedule getSchedule() {
+            return schedule;
+        }
+
+        public boolean isDeleted() {
+            return change == Change.DELETED;
+        }
+
+        public String toString() {
+            String schedules = Medication.toString(schedule);
+            return new StringBuilder(48 + schedules.length()).append("Name: ").append(name)
+                    .append(" | Dosage: ").append(dosage).append(" | Schedules: ").append(schedules)
+                    .append(" | Instructions: ").append(instructions).toString();
+        }
+
+        private Version apply(Event e) {
+            return new Version(medicationId, e.change, e.at,
+                    e.name != null ? e.name : name,
+                    e.dosage != null ? e.dosage : dosage,
+                    e.instructions != null ? e.instructions : instructions,
+                    e.schedule != null ? e.schedule : schedule);
+        }
+    }
+
+    // Null fields were left unchanged.
+    private static final class Event {
+        private final Change change;
+        private final long at;
+        private final String name;
+        private final String dosage;
+        private final String instructions;
+        private final Schedule schedule;
+
+        Event(Change change, long at, String name, String dosage, String instructions, Schedule schedule) {
+            this.change = change;
+            this.at = at;
+            this.name = name;
+            this.dosage = dosage;
+            this.instructions = instructions;
+            this.schedule = schedule;
+        }
+
+        // Only what differs between two versions.
+        static Event between(Version before, Version after) {
+            return new Event(after.change, after.at,
+                    Objects.equals(before.name, after.name) ? null : after.name,
+                    Objects.equals(before.dosage, after.dosage) ? null : after.dosage,
+                    Objects.equals(before.instructions, after.instructions) ? null : after.instructions,
+                    before.schedule == after.schedule ? null : after.schedule);
+        }
+    }
+
+    private static final class Timeline {
+        private final long medicationId;
+        private long[] times = new long[4];
+        private Event[] events = new Event[4];
+        private Version[] checkpoints = new Version[1];
+        private int size;
+        private Version last;
+
+        Timeline(long medicationId) {
+            this.medicationId = medicationId;
+        }
+
+        void append(Version version) {
+            Event e = last == null
+                    ? new Event(version.change, version.at, version.name, version.dosage, version.instructions, version.schedule)
+                    : Event.between(last, version);
+            if (size == events.length) {
+                times = Arrays.copyOf(times, size * 2);
+                events = Arrays.copyOf(events, size * 2);
+            }
+            if (size % CHECKPOINT_EVERY == 0) {
+                int slot = size / CHECKPOINT_EVERY;
+                if (slot == checkpoints.length) checkpoints = Arrays.copyOf(checkpoints, slot * 2);
+                checkpoints[slot] = version;
+            }
+            times[size] = version.at;
+            events[size++] = e;
+            last = version;
+        }
+
+        // The version in effect at the given second, or null before the medication was added.
+        Version at(long second) {
+            int lo = 0;
+            int hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (times[mid] <= second) lo = mid + 1;
+                else hi = mid - 1;
+            }
+            if (hi < 0) return null;
+            int checkpoint = hi / CHECKPOINT_EVERY;
+            Version v = checkpoints[checkpoint];
+            for (int i = checkpoint * CHECKPOINT_EVERY + 1; i <= hi; i++) v = v.apply(events[i]);
+            return v;
+        }
+
+        void forEach(Consumer<Version> action) {
+            Version v = null;
+            for (int i = 0; i < size; i++) {
+                v = i % CHECKPOINT_EVERY == 0 ? checkpoints[i / CHECKPOINT_EVERY] : v.apply(events[i]);
+                action.accept(v);
+            }
+        }
+    }
+
+    private final Map<Long, Timeline> timelines = new TreeMap<>();
+    private int appendedSinceCompaction;
+
+    public void added(Medication m, LocalDateTime at) {
+        record(m, Change.ADDED, at);
+    }
+
+    public void edited(Medication m, LocalDateTime at) {
+        record(m, Change.EDITED, at);
+    }
+
+    public synchronized void deleted(long medicationId, LocalDateTime at) {
+        Timeline timeline = timelines.get(medicationId);
+        if (timeline == null || timeline.last.isDeleted()) return;
+        Version last = timeline.last;
+        timeline.append(new Version(medicationId, Change.DELETED, time(timeline, at),
+                last.name, last.dosage, last.instructions, last.schedule));
+        appendedSinceCompaction++;
+    }
+
+    // Null when the medication did not exist yet or had already been deleted at that time.
+    public synchronized Version versionAt(long medicationId, LocalDateTime at) {
+        Timeline timeline = timelines.get(medicationId);
+        if (timeline == null) return null;
+        Version v = timeline.at(at.toEpochSecond(ZoneOffset.UTC));
+        return v == null || v.isDeleted() ? null : v;
+    }
+
+    // Every medication that existed at the given time, by id.
+    public synchronized List<Version> asOf(LocalDateTime at) {
+        long second = at.toEpochSecond(ZoneOffset.UTC);
+        List<Version> versions = new ArrayList<>();
+        for (Timeline timeline : timelines.values()) {
+            Version v = timeline.at(second);
+            if (v != null && !v.isDeleted()) versions.add(v);
+        }
+        return versions;
+    }
+
+    // The medication after each of its changes, oldest first.
+    public synchronized List<Version> changes(long medicationId) {
+        List<Version> versions = new ArrayList<>();
+        Timeline timeline = timelines.get(medicationId);
+        if (timeline != null) timeline.forEach(versions::add);
+        return versions;
+    }
+
+    // Every change of every medication, one medication at a time, each in order.
+    public synchronized void forEach(Consumer<Version> action) {
+        for (Timeline timeline : timelines.values()) timeline.forEach(action);
+    }
+
+    public synchronized int eventCount() {
+        int count = 0;
+        for (Timeline timeline : timelines.values()) count += timeline.size;
+        return count;
+    }
+
+    public synchronized boolean compactionDue() {
+        return appendedSinceCompaction >= COMPACT_AFTER;
+    }
+
+    // Before the horizon only the state a medication was added with and the state it had reached by the
+    // horizon are kept, so a medication deleted long ago shrinks to its addition and deletion. Deleted
+    // medications are never dropped outright, which keeps their ids from being handed out again.
+    public synchronized void compact(LocalDateTime horizon) {
+        long cutoff = horizon.toEpochSecond(ZoneOffset.UTC);
+        for (Map.Entry<Long, Timeline> e : timelines.entrySet()) {
+            Timeline timeline = e.getValue();
+            int folded = 0;
+            while (folded < timeline.size && timeline.times[folded] < cutoff) folded++;
+            if (folded <= 2) continue;
+            Timeline compacted = new Timeline(timeline.medicationId);
+            List<Version> versions = new ArrayList<>(timeline.size);
+            timeline.forEach(versions::add);
+            compacted.append(versions.get(0));
+            for (int i = folded - 1; i < versions.size(); i++) compacted.append(versions.get(i));
+            e.setValue(compacted);
+        }
+        appendedSinceCompaction = 0;
+    }
+
+    // Ids are never reused, so nothing is added to or edited on a timeline that ends in a deletion.
+    private synchronized void record(Medication m, Change change, LocalDateTime at) {
+        Timeline timeline = timelines.computeIfAbsent(m.getId(), Timeline::new);
+        if (timeline.last != null && timeline.last.isDeleted()) return;
+        Version v = new Version(m.getId(), change, time(timeline, at),
+                m.getName(), m.getDosage(), m.getInstructions(), m.getSchedule());
+        Version last = timeline.last;
+        if (last != null && change == Change.EDITED && Objects.equals(last.name, v.name)
+                && Objects.equals(last.dosage, v.dosage) && Objects.equals(last.instructions, v.instructions)
+                && last.schedule == v.schedule) {
+            return;
+        }
+        timeline.append(v);
+        appendedSinceCompaction++;
+    }
+
+    // Times never run backwards within a timeline, so a clock step back cannot reorder changes.
+    private static long time(Timeline timeline, LocalDateTime at) {
+        long second = at == null ? UNKNOWN_TIME : at.toEpochSecond(ZoneOffset.UTC);
+        return timeline.size == 0 ? second : Math.max(second, timeline.times[timeline.size - 1]);
+    }
+}
@@ -1,16 +1,71 @@
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+// Keeps the name and dosage the medication had when the intake was logged, and the schedule it was taken for, so
+// later edits do not rewrite history.
 public class MedicationRecord extends Record{
-    private Medication medication;
+    public static final long UNKNOWN_SCHEDULE = Long.MIN_VALUE;
+
+    private final long medicationId;
+    private final String medicationName;
+    private final String dosage;
+    // Epoch minute of the schedule the dose was taken for, or UNKNOWN_SCHEDULE.
+    private final long scheduleMinute;
+
+    public MedicationRecord(long epochSecond, String description, Medication medication){
+        this(epochSecond, description, medication.getId(), medication.getName(), medication.getDosage());
+    }
+
+    public MedicationRecord(long epochSecond, String description, Medication medication, LocalDateTime schedule){
+        this(epochSecond, description, medication.getId(), medication.getName(), medication.getDosage(),
+                Medication.toEpochMinute(schedule));
+    }
+
+    public MedicationRecord(long epochSecond, String description, long medicationId, String medicationName, String dosage){
+        this(epochSecond, description, medicationId, medicationName, dosage, UNKNOWN_SCHEDULE);
+    }
+
+    public MedicationRecord(long epochSecond, String description, long medicationId, String medicationName, String dosage,
+            long scheduleMinute){
+        super(epochSecond, description);
+        this.medicationId = medicationId;
+        this.medicationName = medicationName;
+        this.dosage = dosage;
+        this.scheduleMinute = scheduleMinute;
+    }
 
     public MedicationRecord(String dateTime, String description, Medication medication){
+        this(dateTime, description, medication.getId(), medication.getName(), medication.getDosage());
+    }
+
+    public MedicationRecord(String dateTime, String description, long medicationId, String medicationName, String dosage){
         super(dateTime, description);
-        this.medication = medication;
+        this.medicationId = medicationId;
+        this.medicationName = medicationName;
+        this.dosage = dosage;
+        this.scheduleMinute = UNKNOWN_SCHEDULE;
+    }
+
+    public long getMedicationId(){
+        return medicationId;
+    }
+
+    public String getMedicationName(){
+        return medicationName;
+    }
+
+    public String getDosage(){
+        return dosage;
     }
 
-    public Medication getMedication(){
-        return medication;
+    public long getScheduleMinute(){
+        return scheduleMinute;
     }
 
-    public void displayRecord(){
-        System.out.println(dateTime + " - Medication Taken: " + medication.getName() + " (" + medication.getDosage() + ") " + description); 
+    public void appendTo(Appendable out, ZoneId zone) throws IOException{
+        Timestamps.appendSecond(Timestamps.toWallClock(epochSecond, zone), out);
+        out.append(" - Medication Taken: ").append(medicationName)
+                .append(" (").append(dosage).append(") ").append(description);
     }
 }
\ No newline at end of file
@@ -0,0 +1,193 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Medications in the order they were added, addressed by their stable id, by exact name through a hash
+// index and by name prefix through a sorted index. Removing one leaves a tombstone in its slot; slots are
+// compacted once tombstones outnumber live entries, so removal is O(1) amortised.
+public class MedicationStore {
+    private static final Comparator<Medication> BY_NAME =
+            Comparator.comparing((Medication m) -> key(m.getName())).thenComparingLong(Medication::getId);
+
+    private Medication[] slots = new Medication[16];
+    private int used;
+    private volatile int live;
+    private final Map<Long, Integer> slotOf = new HashMap<>();
+    private final Map<Long, Medication> byId = new ConcurrentHashMap<>();
+    private final Map<String, List<Medication>> byName = new HashMap<>();
+    private final TreeSet<String> names = new TreeSet<>();
+    // Readers take the current array without locking; writers clear it and the next reader rebuilds it.
+    private volatile Medication[] snapshot = new Medication[0];
+
+    public Medication[] snapshot() {
+        Medication[] current = snapshot;
+        if (current != null) return current;
+        synchronized (this) {
+            if (snapshot == null) {
+                Medication[] next = new Medication[live];
+                int n = 0;
+                for (int i = 0; i < used; i++) {
+                    if (slots[i] != null) next[n++] = slots[i];
+                }
+                snapshot = next;
+            }
+            return snapshot;
+        }
+    }
+
+    public int size() {
+        return live;
+    }
+
+    public Medication find(long id) {
+        return byId.get(id);
+    }
+
+    // Case-insensitive exact match; several medications may share a name.
+    public synchronized List<Medication> findByName(String name) {
+        List<Medication> found = byName.get(key(name));
+        return found == null ? Collections.emptyList() : new ArrayList<>(found);
+    }
+
+    // Medications whose name starts with prefix (ignoring case), ordered by name, at most limit of them.
+    public synchronized List<Medication> search(String prefix, int limit) {
+        String key = key(prefix);
+        List<Medication> found = new ArrayList<>();
+        for (String name : names.tailSet(key)) {
+            if (!name.startsWith(key) || found.size() >= limit) break;
+            for (Medication m : byName.get(name)) {
+                if (found.size() < limit) found.add(m);
+            }
+        }
+        return found;
+    }
+
+    // Medications whose name, or the start of it, is within a couple of typos of text; closest first.
+    public synchronized List<Medication> suggest(String text, int limit) {
+        String key = key(text);
+        int allowed = key.length() <= 4 ? 1 : 2;
+        List<Medication> found = new ArrayList<>();
+        List<Integer> distances = new ArrayList<>();
+        for (String name : names) {
+            int d = Math.min(distance(key, name, allowed),
+                    distance(key, name.substring(0, Math.min(name.length(), key.length())), allowed));
+            if (d > allowed) continue;
+            for (Medication m : byName.get(name)) {
+                int at = 0;
+                while (at < found.size() && distances.get(at) <= d) at++;
+                found.add(at, m);
+                distances.add(at, d);
+            }
+        }
+        return found.size() > limit ? new ArrayList<>(found.subList(0, limit)) : found;
+    }
+
+    public synchronized void add(Medication medication) {
+        if (byId.containsKey(medication.getId())) {
+            throw new IllegalArgumentException("Duplicate medication id " + medication.getId());
+        }
+        if (used == slots.length) {
+            if (used - live > used / 2) {
+                compact();
+            } else {
+                slots = Arrays.copyOf(slots, slots.length * 2);
+            }
+        }
+        slotOf.put(medication.getId(), used);
+        slots[used++] = medication;
+        live++;
+        byId.put(medication.getId(), medication);
+        index(medication);
+        snapshot = null;
+    }
+
+    public synchronized boolean remove(Medication medication) {
+        Integer slot = slotOf.get(medication.getId());
+        if (slot == null || slots[slot] != medication) return false;
+        slots[slot] = null;
+        slotOf.remove(medication.getId());
+        byId.remove(medication.getId());
+        unindex(medication);
+        live--;
+        snapshot = null;
+        if (used - live > Math.max(16, live)) compact();
+        return true;
+    }
+
+    // Renames through the store so the name indexes follow.
+    public synchronized void rename(Medication medication, String name) {
+        boolean stored = slotOf.containsKey(medication.getId());
+        if (stored) unindex(medication);
+        medication.setName(name);
+        if (stored) index(medication);
+    }
+
+    private void index(Medication m) {
+        String key = key(m.getName());
+        List<Medication> sameName = byName.get(key);
+        if (sameName == null) {
+            sameName = new ArrayList<>(1);
+            byName.put(key, sameName);
+            names.add(key);
+        }
+        sameName.add(m);
+        sameName.sort(BY_NAME);
+    }
+
+    private void unindex(Medication m) {
+        String key = key(m.getName());
+        List<Medication> sameName = byName.get(key);
+        if (sameName == null) return;
+        sameName.remove(m);
+        if (sameName.isEmpty()) {
+            byName.remove(key);
+            names.remove(key);
+        }
+    }
+
+    private void compact() {
+        int n = 0;
+        for (int i = 0; i < used; i++) {
+            Medication m = slots[i];
+            if (m == null) continue;
+            slots[n] = m;
+            slotOf.put(m.getId(), n);
+            n++;
+        }
+        Arrays.fill(slots, n, used, null);
+        used = n;
+    }
+
+    private static String key(String name) {
+        return name == null ? "" : name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // Levenshtein distance, giving up with limit + 1 once every alignment is over limit.
+    static int distance(String a, String b, int limit) {
+        if (Math.abs(a.length() - b.length()) > limit) return limit + 1;
+        int[] prev = new int[b.length() + 1];
+        int[] cur = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) prev[j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            cur[0] = i;
+            int best = cur[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                cur[j] = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+                best = Math.min(best, cur[j]);
+            }
+            if (best > limit) return limit + 1;
+            int[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return Math.min(prev[b.length()], limit + 1);
+    }
+}
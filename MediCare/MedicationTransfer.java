@@ -0,0 +1,540 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+// Streams medications in and out as CSV or JSON Lines. Input is read through one reusable
+// character buffer and parsed in place, so heap use does not depend on the file size.
+public class MedicationTransfer {
+    public enum Format {
+        CSV, JSONL;
+
+        public static Format of(Path file) {
+            String name = file.getFileName().toString().toLowerCase();
+            if (name.endsWith(".csv")) return CSV;
+            if (name.endsWith(".jsonl") || name.endsWith(".ndjson")) return JSONL;
+            throw new IllegalArgumentException("Unknown file type (expected .csv or .jsonl): " + file);
+        }
+    }
+
+    public static final class Report {
+        private long lines;
+        private long imported;
+        private long failed;
+        private final List<String> errors = new ArrayList<>();
+
+        public long getLines() {
+            return lines;
+        }
+
+        public long getImported() {
+            return imported;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        // Only the first MAX_REPORTED_ERRORS are kept; getFailed() has the full count.
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        private void error(long line, String message) {
+            failed++;
+            if (errors.size() < MAX_REPORTED_ERRORS) errors.add("Line " + line + ": " + message);
+        }
+    }
+
+    private static final int BATCH = 1024;
+    private static final int MAX_REPORTED_ERRORS = 100;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // How many line breaks a quoted CSV value may hold. A stray quote would otherwise swallow the rest of the file.
+    private static final int MAX_QUOTED_BREAKS = 100;
+    private static final String[] MEDICATION_FIELDS = {"name", "dosage", "schedules", "instructions"};
+    private static final String[] RECORD_FIELDS = {"time", "type", "description", "medication", "dosage", "feedback"};
+
+    private MedicationTransfer() {
+    }
+
+    public static Report importFrom(Path file, MediCareService service) throws IOException {
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return importFrom(in, Format.of(file), service);
+        }
+    }
+
+    // One medication per line. CSV columns are name,dosage,schedules,instructions (an optional header
+    // line is skipped), and a quoted value may span up to MAX_QUOTED_BREAKS line breaks; JSON lines carry the
+    // same keys. Schedules use the console syntax, rules included.
+    public static Report importFrom(Reader in, Format format, MediCareService service) throws IOException {
+        Report report = new Report();
+        LineReader lines = new LineReader(in, format == Format.CSV);
+        StringBuilder[] fields = new StringBuilder[MEDICATION_FIELDS.length];
+        for (int i = 0; i < fields.length; i++) fields[i] = new StringBuilder();
+        FieldParser parser = format == Format.CSV ? new CsvParser() : new JsonParser();
+        List<MediCareService.NewMedication> batch = new ArrayList<>(BATCH);
+        long[] batchLines = new long[BATCH];
+        boolean first = true;
+
+        while (lines.next()) {
+            report.lines = lines.lineCount();
+            if (lines.isBlank()) continue;
+            try {
+                parser.parse(lines.buffer(), lines.start(), lines.end(), fields);
+                if (first && format == Format.CSV && isHeader(fields)) {
+                    first = false;
+                    continue;
+                }
+                first = false;
+                if (fields[2].length() == 0) throw new InvalidMedicationException("At least one schedule is required");
+                Schedule schedule = service.parseSchedule(fields[2]);
+                batchLines[batch.size()] = lines.firstLine();
+                batch.add(new MediCareService.NewMedication(fields[0].toString(), fields[1].toString(),
+                        schedule, fields[3].toString()));
+            } catch (InvalidMedicationException e) {
+                first = false;
+                report.error(lines.firstLine(), e.getMessage());
+            }
+            if (batch.size() == BATCH) flush(batch, batchLines, service, report);
+        }
+        flush(batch, batchLines, service, report);
+        return report;
+    }
+
+    // Writes only the doses still to take from now on, in a form importFrom accepts: imports refuse past times,
+    // and a dose already taken is not taken again. Medications with nothing left are skipped; returns how many
+    // were written.
+    public static int exportMedications(Medication[] medications, Writer out, Format format, LocalDateTime now)
+            throws IOException {
+        long fromMinute = Medication.toEpochMinute(now);
+        if (!now.equals(now.truncatedTo(ChronoUnit.MINUTES))) fromMinute++;
+        if (format == Format.CSV) out.write("name,dosage,schedules,instructions\n");
+        int written = 0;
+        for (Medication m : medications) {
+            Schedule pending = m.pendingSchedule(fromMinute);
+            if (pending.size() == 0) continue;
+            String[] values = {m.getName(), m.getDosage(), Medication.toString(pending), m.getInstructions()};
+            if (format == Format.CSV) {
+                writeCsvRow(out, values);
+            } else {
+                writeJsonRow(out, MEDICATION_FIELDS, values);
+            }
+            written++;
+        }
+        out.flush();
+        return written;
+    }
+
+    // Times are written as wall-clock times in the zone. Only the records given are written: a service's history()
+    // is what it still holds in memory, and records archived before that are left out.
+    public static void exportHistory(NavigableMap<RecordIndex.Key, Record> records, Writer out, Format format,
+            ZoneId zone) throws IOException {
+        if (format == Format.CSV) out.write("time,type,description,medication,dosage,feedback\n");
+        String[] values = new String[RECORD_FIELDS.length];
+        for (Map.Entry<RecordIndex.Key, Record> e : records.entrySet()) {
+            Record r = e.getValue();
+            Arrays.fill(values, "");
+            values[0] = r.getDateTime(zone);
+            values[2] = r.getDescription();
+            if (r instanceof MedicationRecord) {
+                MedicationRecord intake = (MedicationRecord) r;
+                values[1] = "intake";
+                values[3] = intake.getMedicationName();
+                values[4] = intake.getDosage();
+            } else if (r instanceof FeedbackRecord) {
+                values[1] = "feedback";
+                values[5] = ((FeedbackRecord) r).getFeedback();
+            } else {
+                values[1] = "reminder";
+            }
+            if (format == Format.CSV) {
+                writeCsvRow(out, values);
+            } else {
+                writeJsonRow(out, RECORD_FIELDS, values);
+            }
+        }
+        out.flush();
+    }
+
+    private static void flush(List<MediCareService.NewMedication> batch, long[] batchLines,
+            MediCareService service, Report report) {
+        if (batch.isEmpty()) return;
+        List<MediCareService.Result<Medication>> results = service.addMedications(batch);
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i).isOk()) report.imported++;
+            else report.error(batchLines[i], results.get(i).getError());
+        }
+        batch.clear();
+    }
+
+    private static boolean isHeader(StringBuilder[] fields) {
+        for (int i = 0; i < fields.length; i++) {
+            if (!MEDICATION_FIELDS[i].equalsIgnoreCase(fields[i].toString().trim())) return false;
+        }
+        return true;
+    }
+
+    private static void writeCsvRow(Writer out, String[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) out.write(',');
+            String v = values[i];
+            boolean quote = v.indexOf(',') >= 0 || v.indexOf('"') >= 0 || v.indexOf('\n') >= 0 || v.indexOf('\r') >= 0
+                    || (!v.isEmpty() && (Character.isWhitespace(v.charAt(0)) || Character.isWhitespace(v.charAt(v.length() - 1))));
+            if (!quote) {
+                out.write(v);
+                continue;
+            }
+            out.write('"');
+            for (int j = 0; j < v.length(); j++) {
+                char c = v.charAt(j);
+                if (c == '"') out.write('"');
+                out.write(c);
+            }
+            out.write('"');
+        }
+        out.write('\n');
+    }
+
+    private static void writeJsonRow(Writer out, String[] keys, String[] values) throws IOException {
+        out.write('{');
+        for (int i = 0; i < keys.length; i++) {
+            if (i > 0) out.write(',');
+            writeJsonString(out, keys[i]);
+            out.write(':');
+            writeJsonString(out, values[i]);
+        }
+        out.write("}\n");
+    }
+
+    private static void writeJsonString(Writer out, String s) throws IOException {
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n"); break;
+                case '\r': out.write("\\r"); break;
+                case '\t': out.write("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+
+    // Hands out one line at a time as a range of a shared buffer; the buffer only grows for a longer line. In CSV
+    // mode a line break inside a quoted value does not end the line, so the range may cover several. A quote left
+    // open at the end of the input or past MAX_QUOTED_BREAKS is taken as a stray: its physical line is handed out
+    // on its own, to fail there, and reading goes on from the next one.
+    private static class LineReader {
+        private final Reader in;
+        private final boolean csv;
+        private char[] buffer = new char[BUFFER_SIZE];
+        private int position;
+        private int limit;
+        private int start;
+        private int end;
+        private long lineCount;
+        private long firstLine;
+        private boolean eof;
+
+        LineReader(Reader in, boolean csv) {
+            this.in = in;
+            this.csv = csv;
+        }
+
+        boolean next() throws IOException {
+            int i = position;
+            int breaks = 0;
+            // Offset from position of the first line break inside a quoted value, or -1.
+            int firstBreak = -1;
+            boolean quoted = false;
+            boolean fieldStart = true;
+            boolean closedQuote = false;
+            while (true) {
+                for (; i < limit; i++) {
+                    char c = buffer[i];
+                    if (quoted) {
+                        if (c == '"') {
+                            quoted = false;
+                            closedQuote = true;
+                        } else if (c == '\n') {
+                            if (breaks++ == 0) firstBreak = i - position;
+                            if (breaks > MAX_QUOTED_BREAKS) return strayQuote(firstBreak);
+                        }
+                        continue;
+                    }
+                    if (c == '\n') {
+                        setLine(position, i, breaks);
+                        position = i + 1;
+                        return true;
+                    }
+                    if (!csv) continue;
+                    // A doubled quote right after a closing one is an escaped quote: the value goes on.
+                    if (c == '"' && (fieldStart || closedQuote)) quoted = true;
+                    closedQuote = false;
+                    if (c == ',') fieldStart = true;
+                    else if (c != ' ' && c != '\uFEFF') fieldStart = false;
+                }
+                if (eof) {
+                    if (quoted && breaks > 0) return strayQuote(firstBreak);
+                    if (position == limit) return false;
+                    setLine(position, limit, breaks);
+                    position = limit;
+                    return true;
+                }
+                int scanned = i - position;
+                fill();
+                i = position + scanned;
+            }
+        }
+
+        char[] buffer() {
+            return buffer;
+        }
+
+        int start() {
+            return start;
+        }
+
+        int end() {
+            return end;
+        }
+
+        // Lines read so far, and the number of the first one in the current range.
+        long lineCount() {
+            return lineCount;
+        }
+
+        long firstLine() {
+            return firstLine;
+        }
+
+        boolean isBlank() {
+            for (int i = start; i < end; i++) {
+                if (!Character.isWhitespace(buffer[i])) return false;
+            }
+            return true;
+        }
+
+        private boolean strayQuote(int firstBreak) {
+            setLine(position, position + firstBreak, 0);
+            position += firstBreak + 1;
+            return true;
+        }
+
+        private void setLine(int from, int to, int breaks) {
+            firstLine = lineCount + 1;
+            lineCount += 1 + breaks;
+            if (to > from && buffer[to - 1] == '\r') to--;
+            if (to > from && buffer[from] == '\uFEFF') from++;
+            start = from;
+            end = to;
+        }
+
+        private void fill() throws IOException {
+            if (position > 0) {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+            }
+            if (limit == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) eof = true;
+            else limit += read;
+        }
+    }
+
+    private interface FieldParser {
+        // Fills fields with name, dosage, schedules and instructions, clearing them first.
+        void parse(char[] line, int start, int end, StringBuilder[] fields) throws InvalidMedicationException;
+    }
+
+    private static class CsvParser implements FieldParser {
+        public void parse(char[] line, int start, int end, StringBuilder[] fields) throws InvalidMedicationException {
+            for (StringBuilder f : fields) f.setLength(0);
+            int field = 0;
+            int i = start;
+            while (true) {
+                if (field >= fields.length) {
+                    throw new InvalidMedicationException("Expected " + fields.length + " columns");
+                }
+                StringBuilder out = fields[field];
+                while (i < end && line[i] == ' ') i++;
+                if (i < end && line[i] == '"') {
+                    i++;
+                    boolean closed = false;
+                    while (i < end) {
+                        char c = line[i++];
+                        if (c != '"') {
+                            out.append(c);
+                        } else if (i < end && line[i] == '"') {
+                            out.append('"');
+                            i++;
+                        } else {
+                            closed = true;
+                            break;
+                        }
+                    }
+                    if (!closed) throw new InvalidMedicationException("Unterminated quoted value");
+                    while (i < end && line[i] == ' ') i++;
+                    if (i < end && line[i] != ',') throw new InvalidMedicationException("Unexpected text after quoted value");
+                } else {
+                    int from = i;
+                    while (i < end && line[i] != ',') i++;
+                    out.append(line, from, i - from);
+                }
+                if (i >= end) break;
+                i++;
+                field++;
+            }
+            if (field != fields.length - 1) {
+                throw new InvalidMedicationException("Expected " + fields.length + " columns");
+            }
+        }
+    }
+
+    // Accepts one flat JSON object per line; "schedules" may be a string or an array of strings.
+    private static class JsonParser implements FieldParser {
+        private final StringBuilder key = new StringBuilder();
+        private char[] line;
+        private int start;
+        private int i;
+        private int end;
+
+        public void parse(char[] line, int start, int end, StringBuilder[] fields) throws InvalidMedicationException {
+            this.line = line;
+            this.start = start;
+            this.i = start;
+            this.end = end;
+            for (StringBuilder f : fields) f.setLength(0);
+            expect('{');
+            if (peek() == '}') {
+                i++;
+            } else {
+                while (true) {
+                    key.setLength(0);
+                    string(key);
+                    expect(':');
+                    StringBuilder target = null;
+                    for (int f = 0; f < fields.length; f++) {
+                        if (MEDICATION_FIELDS[f].contentEquals(key)) target = fields[f];
+                    }
+                    value(target);
+                    char c = next();
+                    if (c == '}') break;
+                    if (c != ',') throw error();
+                }
+            }
+            if (peek() != 0) throw error();
+        }
+
+        private void value(StringBuilder target) throws InvalidMedicationException {
+            char c = peek();
+            if (c == '"') {
+                string(target);
+            } else if (c == '[') {
+                i++;
+                if (peek() == ']') {
+                    i++;
+                    return;
+                }
+                while (true) {
+                    if (target != null && target.length() > 0) target.append(", ");
+                    if (peek() != '"') throw error();
+                    string(target);
+                    char n = next();
+                    if (n == ']') return;
+                    if (n != ',') throw error();
+                }
+            } else if (target == null) {
+                skipScalar();
+            } else if (!literal("null")) {
+                throw new InvalidMedicationException("Expected a string value for \"" + key + "\"");
+            }
+        }
+
+        private void string(StringBuilder out) throws InvalidMedicationException {
+            expect('"');
+            while (i < end) {
+                char c = line[i++];
+                if (c == '"') return;
+                if (c != '\\') {
+                    if (out != null) out.append(c);
+                    continue;
+                }
+                if (i >= end) break;
+                char e = line[i++];
+                switch (e) {
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'u':
+                        if (end - i < 4) throw error();
+                        int code = 0;
+                        for (int k = 0; k < 4; k++) {
+                            int d = Character.digit(line[i++], 16);
+                            if (d < 0) throw error();
+                            code = code * 16 + d;
+                        }
+                        c = (char) code;
+                        break;
+                    default: c = e;
+                }
+                if (out != null) out.append(c);
+            }
+            throw new InvalidMedicationException("Unterminated string");
+        }
+
+        private void skipScalar() throws InvalidMedicationException {
+            int from = i;
+            while (i < end && line[i] != ',' && line[i] != '}' && !Character.isWhitespace(line[i])) i++;
+            if (i == from || line[from] == '{' || line[from] == '[') throw error();
+        }
+
+        private boolean literal(String word) {
+            if (end - i < word.length()) return false;
+            for (int k = 0; k < word.length(); k++) {
+                if (line[i + k] != word.charAt(k)) return false;
+            }
+            i += word.length();
+            return true;
+        }
+
+        private void expect(char c) throws InvalidMedicationException {
+            if (next() != c) throw error();
+        }
+
+        private char next() {
+            char c = peek();
+            if (c != 0) i++;
+            return c;
+        }
+
+        private char peek() {
+            while (i < end && Character.isWhitespace(line[i])) i++;
+            return i < end ? line[i] : 0;
+        }
+
+        private InvalidMedicationException error() {
+            return new InvalidMedicationException("Malformed JSON near column " + (i - start + 1));
+        }
+    }
+}
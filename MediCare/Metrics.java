@@ -0,0 +1,289 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Process-wide counters, gauges and latency histograms, exported as Prometheus text over a file,
+// a local HTTP endpoint or JMX. Recording is lock-free: LongAdder cells and atomic bucket counts.
+public class Metrics {
+    private static final Metrics GLOBAL = new Metrics();
+
+    public static Metrics global() {
+        return GLOBAL;
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    // Log-linear buckets in the style of HdrHistogram: 8 per power of two, so any recorded
+    // value is reported within 12.5%, from nanoseconds up to centuries, in under 4KB.
+    public static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            counts.incrementAndGet(index(nanos));
+            count.increment();
+            sum.add(nanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        // Upper bound of the bucket holding the q-th quantile, in nanoseconds.
+        public long quantile(double q) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) total += snapshot[i] = counts.get(i);
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank && snapshot[i] > 0) return upperBound(i);
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        static int index(long v) {
+            if (v < SUB) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            return (exp - SUB_BITS + 1) * SUB + (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+        }
+
+        static long upperBound(int index) {
+            if (index < SUB) return index;
+            int shift = index / SUB - 1;
+            long lower = (long) (SUB + index % SUB) << shift;
+            long width = (1L << shift) - 1;
+            // The top buckets reach Long.MAX_VALUE; clamp rather than let the sum wrap.
+            return lower > Long.MAX_VALUE - width ? Long.MAX_VALUE : lower + width;
+        }
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final class Family {
+        private final String type;
+        private final String help;
+        private final ConcurrentMap<String, Object> children = new ConcurrentHashMap<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentHashMap<>();
+
+    public Counter counter(String name, String help) {
+        return counter(name, help, "");
+    }
+
+    // labels is either empty or a Prometheus label set such as command="add"
+    public Counter counter(String name, String help, String labels) {
+        return (Counter) child(name, "counter", help, labels, Counter::new);
+    }
+
+    // An up-down value that several owners add to, such as the number of stored records across patients.
+    public Counter level(String name, String help) {
+        return (Counter) child(name, "gauge", help, "", Counter::new);
+    }
+
+    public Histogram histogram(String name, String help) {
+        return histogram(name, help, "");
+    }
+
+    public Histogram histogram(String name, String help, String labels) {
+        return (Histogram) child(name, "summary", help, labels, Histogram::new);
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        families.computeIfAbsent(name, n -> new Family("gauge", help)).children.put("", value);
+    }
+
+    private Object child(String name, String type, String help, String labels, Supplier<Object> create) {
+        Family family = families.computeIfAbsent(name, n -> new Family(type, help));
+        if (!family.type.equals(type)) throw new IllegalArgumentException(name + " is already a " + family.type);
+        return family.children.computeIfAbsent(labels, l -> create.get());
+    }
+
+    public void render(Appendable out) throws IOException {
+        for (Map.Entry<String, Family> f : new TreeMap<>(families).entrySet()) {
+            String name = f.getKey();
+            Family family = f.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> c : new TreeMap<>(family.children).entrySet()) {
+                String labels = c.getKey();
+                Object metric = c.getValue();
+                if (metric instanceof Histogram) {
+                    Histogram h = (Histogram) metric;
+                    for (double q : QUANTILES) {
+                        String ql = "quantile=\"" + q + "\"";
+                        sample(out, name, labels.isEmpty() ? ql : labels + "," + ql, seconds(h.quantile(q)));
+                    }
+                    sample(out, name + "_sum", labels, seconds(h.sum()));
+                    sample(out, name + "_count", labels, Long.toString(h.count()));
+                } else if (metric instanceof Counter) {
+                    sample(out, name, labels, Long.toString(((Counter) metric).get()));
+                } else {
+                    sample(out, name, labels, Long.toString(((LongSupplier) metric).getAsLong()));
+                }
+            }
+        }
+    }
+
+    public String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        try {
+            render(sb);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
+    // Current value of every counter and gauge, and count/p50/p99 of every histogram, keyed by series name.
+    public Map<String, Double> values() {
+        Map<String, Double> values = new TreeMap<>();
+        for (Map.Entry<String, Family> f : families.entrySet()) {
+            for (Map.Entry<String, Object> c : f.getValue().children.entrySet()) {
+                String series = c.getKey().isEmpty() ? f.getKey() : f.getKey() + "{" + c.getKey() + "}";
+                Object metric = c.getValue();
+                if (metric instanceof Histogram) {
+                    Histogram h = (Histogram) metric;
+                    values.put(series + " count", (double) h.count());
+                    values.put(series + " p50 seconds", h.quantile(0.5) / 1e9);
+                    values.put(series + " p99 seconds", h.quantile(0.99) / 1e9);
+                } else if (metric instanceof Counter) {
+                    values.put(series, (double) ((Counter) metric).get());
+                } else {
+                    values.put(series, (double) ((LongSupplier) metric).getAsLong());
+                }
+            }
+        }
+        return values;
+    }
+
+    public void writeTo(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, render().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Rewrites the file every interval, for a node exporter textfile collector to pick up.
+    public void writePeriodically(Path file, long intervalSeconds) {
+        ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        writer.scheduleWithFixedDelay(() -> {
+            try {
+                writeTo(file);
+            } catch (IOException e) {
+                System.err.println("Unable to write metrics to " + file + ": " + e.getMessage());
+            }
+        }, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // Serves GET /metrics on the loopback interface only.
+    public HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        return server;
+    }
+
+    public void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("medicare:type=Metrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(this), name);
+            }
+        } catch (JMException e) {
+            System.err.println("Unable to register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    private static void sample(Appendable out, String name, String labels, String value) throws IOException {
+        out.append(name);
+        if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static final class MetricsBean implements MetricsMXBean {
+        private final Metrics metrics;
+
+        MetricsBean(Metrics metrics) {
+            this.metrics = metrics;
+        }
+
+        public Map<String, Double> getValues() {
+            return metrics.values();
+        }
+
+        public String getPrometheusText() {
+            return metrics.render();
+        }
+    }
+}
@@ -0,0 +1,7 @@
+import java.util.Map;
+
+public interface MetricsMXBean {
+    Map<String, Double> getValues();
+
+    String getPrometheusText();
+}
@@ -0,0 +1,143 @@
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+// Grace-window deadlines of reminded doses, bucketed by the minute they expire in. Registering one is a map
+// lookup and an append, and when a minute comes only its own bucket is touched, however many patients are
+// watched. Deadlines are not cancelled when a dose is taken; the listener checks when they expire.
+public class MissedDoseMonitor {
+    public interface Listener {
+        void onDeadline(Medication medication, LocalDateTime schedule, Escalation.Stage stage);
+    }
+
+    private static final Metrics.Counter PENDING = Metrics.global().level("medicare_dose_deadlines_pending",
+            "Grace-window deadlines waiting to expire, across all monitors");
+
+    private static class Deadline {
+        private final Medication medication;
+        private final LocalDateTime schedule;
+        private final Escalation.Stage stage;
+        private final Listener listener;
+
+        Deadline(Medication medication, LocalDateTime schedule, Escalation.Stage stage, Listener listener) {
+            this.medication = medication;
+            this.schedule = schedule;
+            this.stage = stage;
+            this.listener = listener;
+        }
+    }
+
+    private final TreeMap<Long, List<Deadline>> buckets = new TreeMap<>();
+    private final Executor dispatcher;
+    private final Clock clock;
+    private final Thread thread;
+    private int size;
+
+    public MissedDoseMonitor() {
+        this(Runnable::run);
+    }
+
+    public MissedDoseMonitor(Executor dispatcher) {
+        this(dispatcher, Clock.systemDefaultZone());
+    }
+
+    // Expired deadlines are grouped by listener, one dispatcher task each, so a patient with several
+    // doses running out in the same minute is handled in one go. Deadlines are wall-clock times in the
+    // clock's zone; on a VirtualClock they are handled on whichever thread advances it.
+    public MissedDoseMonitor(Executor dispatcher, Clock clock) {
+        this.clock = clock;
+        if (clock instanceof VirtualClock) {
+            this.dispatcher = Runnable::run;
+            ((VirtualClock) clock).register(new VirtualClock.Timer() {
+                public Instant nextDue() {
+                    synchronized (MissedDoseMonitor.this) {
+                        return buckets.isEmpty() ? null : dueAt(buckets.firstKey());
+                    }
+                }
+
+                public void runDue() {
+                    List<Deadline> expired = pollExpired();
+                    if (expired != null) dispatch(expired);
+                }
+            });
+            thread = null;
+            return;
+        }
+        this.dispatcher = dispatcher;
+        thread = new Thread(this::run, "dose-monitor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Stops the thread; deadlines still waiting never expire. Ones already handed to the dispatcher still run.
+    public void close() {
+        if (thread != null) thread.interrupt();
+    }
+
+    public synchronized void watch(Medication medication, LocalDateTime schedule, Escalation.Stage stage,
+            LocalDateTime deadline, Listener listener) {
+        long minute = Medication.toEpochMinute(deadline);
+        buckets.computeIfAbsent(minute, k -> new ArrayList<>()).add(new Deadline(medication, schedule, stage, listener));
+        size++;
+        PENDING.inc();
+        if (buckets.firstKey() == minute) notifyAll();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                dispatch(awaitExpired());
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private void dispatch(List<Deadline> expired) {
+        Map<Listener, List<Deadline>> byListener = new LinkedHashMap<>();
+        for (Deadline d : expired) byListener.computeIfAbsent(d.listener, k -> new ArrayList<>()).add(d);
+        for (List<Deadline> group : byListener.values()) {
+            dispatcher.execute(() -> {
+                for (Deadline d : group) d.listener.onDeadline(d.medication, d.schedule, d.stage);
+            });
+        }
+    }
+
+    private synchronized List<Deadline> awaitExpired() throws InterruptedException {
+        while (true) {
+            if (buckets.isEmpty()) {
+                wait();
+                continue;
+            }
+            long waitMillis = Duration.between(clock.instant(), dueAt(buckets.firstKey())).toMillis();
+            if (waitMillis > 0) {
+                wait(waitMillis);
+                continue;
+            }
+            return pollExpired();
+        }
+    }
+
+    private synchronized List<Deadline> pollExpired() {
+        if (buckets.isEmpty() || dueAt(buckets.firstKey()).isAfter(clock.instant())) return null;
+        List<Deadline> expired = buckets.pollFirstEntry().getValue();
+        size -= expired.size();
+        PENDING.add(-expired.size());
+        return expired;
+    }
+
+    private Instant dueAt(long minute) {
+        return Timestamps.toInstant(Medication.fromEpochMinute(minute), clock.getZone());
+    }
+}
@@ -0,0 +1,16 @@
+public interface OutputSink {
+    void print(CharSequence text);
+
+    default void println(CharSequence text) {
+        print(text + System.lineSeparator());
+    }
+
+    default void println() {
+        print(System.lineSeparator());
+    }
+
+    // Blocks until everything printed so far has reached the underlying stream.
+    void flush();
+
+    void close();
+}
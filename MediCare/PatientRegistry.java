@@ -0,0 +1,247 @@
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+// Hosts one MediCareService per patient in a single process. All shards share one reminder
+// thread, one missed-dose monitor and one bounded worker pool; nothing here costs a thread per patient.
+public class PatientRegistry {
+    private static final Pattern PATIENT_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private static final int RECORDS_PER_PATIENT = 200;
+    private static final long ESCALATION_BATCH_MILLIS = 60_000;
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    private static class Shard {
+        private final MediCareService service;
+        private final SerialExecutor commands;
+
+        Shard(MediCareService service, SerialExecutor commands) {
+            this.service = service;
+            this.commands = commands;
+        }
+    }
+
+    // Runs one task at a time for a patient, in submission order, borrowing a pool thread only while busy.
+    private static class SerialExecutor implements Executor {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private final Executor pool;
+        private final Consumer<String> warnings;
+        private boolean running;
+
+        SerialExecutor(Executor pool, Consumer<String> warnings) {
+            this.pool = pool;
+            this.warnings = warnings;
+        }
+
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+            if (!running) {
+                running = true;
+                pool.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    warnings.accept("Patient command failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private final Map<String, Shard> shards = new ConcurrentHashMap<>();
+    private final ExecutorService pool;
+    private final ReminderScheduler scheduler;
+    private final MissedDoseMonitor monitor;
+    private final EscalationOutbox outbox;
+    private final Path dataDirectory;
+    private final Clock clock;
+    private final Consumer<String> warnings;
+    private volatile InteractionChecker interactions = InteractionChecker.none();
+
+    public PatientRegistry(Path dataDirectory) {
+        this(dataDirectory, Runtime.getRuntime().availableProcessors());
+    }
+
+    public PatientRegistry(Path dataDirectory, int workers) {
+        this(dataDirectory, workers, null);
+    }
+
+    public PatientRegistry(Path dataDirectory, int workers, EscalationSink sink) {
+        this(dataDirectory, workers, sink, Clock.systemDefaultZone());
+    }
+
+    // A null data directory keeps every patient in memory only. Overdue and missed doses are batched per
+    // patient and handed to the sink about once a minute; with a null sink they are not escalated. All
+    // patients share the clock; on a VirtualClock reminders and deadlines fire as it is advanced.
+    public PatientRegistry(Path dataDirectory, int workers, EscalationSink sink, Clock clock) {
+        this(dataDirectory, workers, sink, clock, w -> { });
+    }
+
+    // Nothing here prints: journals, archives, the outbox and failed commands report through warnings, with the
+    // patient named where there is one.
+    public PatientRegistry(Path dataDirectory, int workers, EscalationSink sink, Clock clock, Consumer<String> warnings) {
+        this.dataDirectory = dataDirectory;
+        this.clock = clock;
+        this.warnings = warnings;
+        AtomicInteger threadCount = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "patient-worker-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler = new ReminderScheduler(pool, clock);
+        monitor = new MissedDoseMonitor(pool, clock);
+        outbox = sink == null ? null : new EscalationOutbox(
+                dataDirectory == null ? null : dataDirectory.resolve("escalations.outbox"), sink, ESCALATION_BATCH_MILLIS,
+                clock, warnings);
+    }
+
+    public MediCareService get(String patientId) {
+        return shard(patientId).service;
+    }
+
+    public boolean contains(String patientId) {
+        return shards.containsKey(patientId);
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    public ReminderScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public MissedDoseMonitor getMonitor() {
+        return monitor;
+    }
+
+    // Applies to every patient, hosted now or opened later.
+    public void setInteractionChecker(InteractionChecker checker) {
+        interactions = checker != null ? checker : InteractionChecker.none();
+        for (Shard shard : shards.values()) shard.service.setInteractionChecker(interactions);
+    }
+
+    // Reviews each patient's whole regimen, spread over the worker pool; patients with nothing to report are
+    // left out. Patients not hosted yet are opened.
+    public Map<String, List<InteractionChecker.Finding>> screenInteractions(Collection<String> patientIds) {
+        List<String> ids = new ArrayList<>(patientIds);
+        List<CompletableFuture<List<InteractionChecker.Finding>>> reviews = new ArrayList<>(ids.size());
+        for (String patientId : ids) {
+            MediCareService service = get(patientId);
+            reviews.add(CompletableFuture.supplyAsync(service::reviewInteractions, pool));
+        }
+        Map<String, List<InteractionChecker.Finding>> findings = new TreeMap<>();
+        for (int i = 0; i < ids.size(); i++) {
+            List<InteractionChecker.Finding> found = reviews.get(i).join();
+            if (!found.isEmpty()) findings.put(ids.get(i), found);
+        }
+        return findings;
+    }
+
+    public Map<String, List<InteractionChecker.Finding>> screenInteractions() {
+        return screenInteractions(shards.keySet());
+    }
+
+    // Commands for the same patient run one after another; different patients run in parallel.
+    public <T> CompletableFuture<T> submit(String patientId, MediCareService.Command<T> command) {
+        return shard(patientId).service.submit(command);
+    }
+
+    public boolean remove(String patientId) {
+        return closeShard(patientId) != null;
+    }
+
+    // Closes every patient after its queued commands, waiting up to CLOSE_TIMEOUT_SECONDS for their journals to
+    // be snapshotted and closed. Returns the patients that did not finish in time, which are also reported.
+    public List<String> close() {
+        Map<String, CompletableFuture<Void>> closing = new TreeMap<>();
+        for (String patientId : shards.keySet()) {
+            CompletableFuture<Void> closed = closeShard(patientId);
+            if (closed != null) closing.put(patientId, closed);
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler.close();
+        monitor.close();
+        if (outbox != null) outbox.close();
+        List<String> unfinished = new ArrayList<>();
+        for (Map.Entry<String, CompletableFuture<Void>> e : closing.entrySet()) {
+            if (!e.getValue().isDone()) unfinished.add(e.getKey());
+        }
+        if (!unfinished.isEmpty()) {
+            warnings.accept("Patients not closed within " + CLOSE_TIMEOUT_SECONDS + " s, recent changes may be lost: "
+                    + String.join(", ", unfinished));
+        }
+        return unfinished;
+    }
+
+    private CompletableFuture<Void> closeShard(String patientId) {
+        Shard shard = shards.remove(patientId);
+        if (shard == null) return null;
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        shard.commands.execute(() -> {
+            try {
+                shard.service.close();
+            } finally {
+                closed.complete(null);
+            }
+        });
+        return closed;
+    }
+
+    private Shard shard(String patientId) {
+        if (patientId == null || !PATIENT_ID.matcher(patientId).matches()) {
+            throw new IllegalArgumentException("Invalid patient ID: " + patientId);
+        }
+        return shards.computeIfAbsent(patientId, this::open);
+    }
+
+    private Shard open(String patientId) {
+        Path archive = null;
+        Journal journal = null;
+        if (dataDirectory != null) {
+            archive = dataDirectory.resolve(patientId + "-history.log");
+            journal = MediCareManager.openJournal(dataDirectory.resolve(patientId + ".journal"),
+                    w -> warnings.accept(patientId + ": " + w));
+        }
+        SerialExecutor commands = new SerialExecutor(pool, warnings);
+        MediCareService service = new MediCareService(RECORDS_PER_PATIENT, archive, journal, scheduler, monitor, commands, clock);
+        if (service.getRestoreFailure() != null) {
+            warnings.accept("Unable to restore saved data for " + patientId + ": " + service.getRestoreFailure().getMessage());
+        }
+        service.setWarningListener(w -> warnings.accept(patientId + ": " + w));
+        if (outbox != null) service.setEscalationListener(e -> outbox.offer(patientId, e));
+        service.setInteractionChecker(interactions);
+        return new Shard(service, commands);
+    }
+}
@@ -1,19 +1,55 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+// The time is kept as the epoch second of the instant, so records stay in order across DST changes; it is only
+// turned into a wall-clock time in a zone when the record is displayed or exported.
 public abstract class Record{
-    protected String dateTime;
+    private static final DateTimeFormatter RECORD_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    protected final long epochSecond;
     protected String description;
 
-    public Record(String dateTime, String description){
-        this.dateTime = dateTime;
+    public Record(long epochSecond, String description){
+        this.epochSecond = epochSecond;
         this.description = description;
     }
 
-    public String getDateTime(){
-        return dateTime;
+    // dateTime is "yyyy-MM-dd HH:mm:ss" in the system time zone.
+    public Record(String dateTime, String description){
+        this(Timestamps.toInstant(LocalDateTime.parse(dateTime, RECORD_TIME), ZoneId.systemDefault()).getEpochSecond(),
+                description);
+    }
+
+    public long getEpochSecond(){
+        return epochSecond;
+    }
+
+    public String getDateTime(ZoneId zone){
+        return Timestamps.second(Timestamps.toWallClock(epochSecond, zone));
     }
 
     public String getDescription(){
         return description;
     }
 
-    public abstract void displayRecord();
+    // Renders the record as one line into the caller's buffer, so listing many records allocates nothing per line.
+    public void displayRecord(Appendable out, ZoneId zone) throws IOException{
+        appendTo(out, zone);
+        out.append(System.lineSeparator());
+    }
+
+    public abstract void appendTo(Appendable out, ZoneId zone) throws IOException;
+
+    public String toString(){
+        StringBuilder sb = new StringBuilder();
+        try{
+            appendTo(sb, ZoneId.systemDefault());
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
 }
\ No newline at end of file
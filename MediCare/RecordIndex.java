@@ -0,0 +1,107 @@
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.ObjIntConsumer;
+
+public class RecordIndex {
+    public static final class Key implements Comparable<Key> {
+        private final long millis;
+        private final long seq;
+
+        private Key(long millis, long seq) {
+            this.millis = millis;
+            this.seq = seq;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public int compareTo(Key other) {
+            int c = Long.compare(millis, other.millis);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+
+    private static final NavigableMap<Key, Record> EMPTY = Collections.emptyNavigableMap();
+
+    private final ConcurrentSkipListMap<Key, Record> byTime = new ConcurrentSkipListMap<>();
+    private final Map<Class<?>, ConcurrentSkipListMap<Key, Record>> byType = new ConcurrentHashMap<>();
+    private final Map<Long, ConcurrentSkipListMap<Key, Record>> byMedication = new ConcurrentHashMap<>();
+    // Records leave the index in the order they entered it, so the oldest key is always at the front.
+    private final ArrayDeque<Key> insertionOrder = new ArrayDeque<>();
+    private long nextSeq;
+
+    // Called by RecordLog under its own lock; readers only touch the skip lists.
+    void add(Record r) {
+        Key key = new Key(r.getEpochSecond() * 1000, nextSeq++);
+        insertionOrder.addLast(key);
+        byTime.put(key, r);
+        byType.computeIfAbsent(r.getClass(), c -> new ConcurrentSkipListMap<>()).put(key, r);
+        if (r instanceof MedicationRecord) {
+            long id = ((MedicationRecord) r).getMedicationId();
+            byMedication.computeIfAbsent(id, k -> new ConcurrentSkipListMap<>()).put(key, r);
+        }
+    }
+
+    void removeOldest() {
+        Key key = insertionOrder.pollFirst();
+        if (key == null) return;
+        Record r = byTime.remove(key);
+        if (r == null) return;
+        Map<Key, Record> typed = byType.get(r.getClass());
+        if (typed != null) typed.remove(key);
+        if (r instanceof MedicationRecord) {
+            Map<Key, Record> forMedication = byMedication.get(((MedicationRecord) r).getMedicationId());
+            if (forMedication != null) forMedication.remove(key);
+        }
+    }
+
+    public NavigableMap<Key, Record> all() {
+        return byTime;
+    }
+
+    public NavigableMap<Key, Record> ofType(Class<? extends Record> type) {
+        NavigableMap<Key, Record> typed = byType.get(type);
+        return typed == null ? EMPTY : typed;
+    }
+
+    public NavigableMap<Key, Record> ofMedication(long medicationId) {
+        NavigableMap<Key, Record> forMedication = byMedication.get(medicationId);
+        return forMedication == null ? EMPTY : forMedication;
+    }
+
+    // Keys are instants; from and to are wall-clock times in the zone.
+    public static NavigableMap<Key, Record> between(NavigableMap<Key, Record> index, LocalDateTime from, LocalDateTime to,
+            ZoneId zone) {
+        if (from == null && to == null) return index;
+        long fromMillis = from == null ? Long.MIN_VALUE : toMillis(from, zone, false);
+        long toMillis = to == null ? Long.MAX_VALUE : toMillis(to, zone, true);
+        if (fromMillis > toMillis) return EMPTY;
+        return index.subMap(new Key(fromMillis, Long.MIN_VALUE), true, new Key(toMillis, Long.MAX_VALUE), true);
+    }
+
+    // Positions are the record's overall sequence number, matching RecordLog.forEach numbering.
+    public static void forEach(NavigableMap<Key, Record> index, ObjIntConsumer<Record> action) {
+        for (Map.Entry<Key, Record> e : index.entrySet()) {
+            action.accept(e.getValue(), (int) e.getKey().getSeq());
+        }
+    }
+
+    // A range ending in the hour repeated in autumn takes in both passes of it.
+    private static long toMillis(LocalDateTime t, ZoneId zone, boolean end) {
+        if (end && zone.getRules().getValidOffsets(t).size() > 1) {
+            return t.atZone(zone).withLaterOffsetAtOverlap().toInstant().toEpochMilli();
+        }
+        return Timestamps.toInstant(t, zone).toEpochMilli();
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+
+public class RecordLog {
+    private final Record[] ring;
+    private int head;
+    private int count;
+    private long evicted;
+    private final RecordIndex index = new RecordIndex();
+
+    private final Path spillFile;
+    private final ZoneId zone;
+    // Told when the archive cannot be written or closed.
+    private final Consumer<String> warnings;
+    private BufferedWriter spill;
+
+    public RecordLog(int capacity) {
+        this(capacity, null, ZoneId.systemDefault());
+    }
+
+    public RecordLog(int capacity, Path spillFile, ZoneId zone) {
+        this(capacity, spillFile, zone, w -> { });
+    }
+
+    // Archived records are written out with their times in the zone.
+    public RecordLog(int capacity, Path spillFile, ZoneId zone, Consumer<String> warnings) {
+        if (capacity <= 0) throw new IllegalArgumentException("Record capacity must be positive");
+        ring = new Record[capacity];
+        this.spillFile = spillFile;
+        this.zone = zone;
+        this.warnings = warnings;
+    }
+
+    // Returns false only when the oldest record had to be dropped without being archived.
+    public synchronized boolean add(Record r) {
+        if (count < ring.length) {
+            ring[(head + count++) % ring.length] = r;
+            index.add(r);
+            return true;
+        }
+        index.removeOldest();
+        index.add(r);
+        Record oldest = ring[head];
+        ring[head] = r;
+        head = (head + 1) % ring.length;
+        evicted++;
+        return spill(oldest);
+    }
+
+    // Used when replaying saved history: anything pushed out here was archived the first time round.
+    public synchronized void restore(Record r) {
+        if (count == ring.length) index.removeOldest();
+        index.add(r);
+        ring[(head + count) % ring.length] = r;
+        if (count < ring.length) {
+            count++;
+        } else {
+            head = (head + 1) % ring.length;
+            evicted++;
+        }
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public RecordIndex index() {
+        return index;
+    }
+
+    public int capacity() {
+        return ring.length;
+    }
+
+    public synchronized long evictedCount() {
+        return evicted;
+    }
+
+    public Path getSpillFile() {
+        return spillFile;
+    }
+
+    // Positions passed to the action keep counting across evictions, so numbering stays stable.
+    public synchronized void forEach(ObjIntConsumer<Record> action) {
+        for (int i = 0; i < count; i++) {
+            action.accept(ring[(head + i) % ring.length], (int) (evicted + i));
+        }
+    }
+
+    public synchronized void close() {
+        if (spill == null) return;
+        try {
+            spill.close();
+        } catch (IOException e) {
+            warnings.accept("Unable to close history archive: " + e.getMessage());
+        }
+        spill = null;
+    }
+
+    private boolean spill(Record r) {
+        if (spillFile == null) return false;
+        try {
+            if (spill == null) {
+                spill = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            r.displayRecord(spill, zone);
+            return true;
+        } catch (IOException e) {
+            warnings.accept("Unable to archive history record: " + e.getMessage());
+            return false;
+        }
+    }
+}
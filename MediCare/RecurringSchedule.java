@@ -0,0 +1,200 @@
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Occurrences are anchor + cycle * period + offsets[i], limited to [from, until]; nothing is materialised.
+public class RecurringSchedule implements Schedule {
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm");
+
+    private static final Pattern EVERY = Pattern.compile(
+            "every\\s+(\\d+)\\s*(minutes?|mins?|m|hours?|hrs?|h|days?|d)\\b(.*)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern DAILY = Pattern.compile(
+            "daily\\s+at\\s+([0-9:,\\s]+?)\\s*((?:from|until)\\s.*)?", Pattern.CASE_INSENSITIVE);
+    private static final Pattern BOUNDS = Pattern.compile(
+            "\\s*(?:from\\s+(.+?))?\\s*(?:until\\s+(.+?))?\\s*", Pattern.CASE_INSENSITIVE);
+
+    private final long anchor;
+    private final int period;
+    private final int[] offsets;
+    private final long from;
+    private final long until;
+    private final long skip;
+    private final int size;
+
+    public RecurringSchedule(long anchor, int period, int[] offsets, long from, long until) {
+        if (period <= 0) throw new IllegalArgumentException("Period must be positive");
+        if (offsets.length == 0) throw new IllegalArgumentException("At least one time of day is required");
+        this.anchor = anchor;
+        this.period = period;
+        this.offsets = offsets;
+        this.from = from;
+        this.until = until;
+        this.skip = rawCeiling(from);
+        long last = until == Long.MAX_VALUE ? Long.MAX_VALUE : rawCeiling(until + 1) - skip;
+        this.size = (int) Math.min(Integer.MAX_VALUE, Math.max(0, last));
+    }
+
+    public static boolean isRule(String text) {
+        String t = text.trim().toLowerCase();
+        return t.startsWith("every ") || t.startsWith("daily ");
+    }
+
+    public static RecurringSchedule parse(String text, LocalDateTime now) throws InvalidMedicationException {
+        String t = text.trim();
+        Matcher every = EVERY.matcher(t);
+        if (every.matches()) {
+            long amount = Long.parseLong(every.group(1));
+            char unit = Character.toLowerCase(every.group(2).charAt(0));
+            long period = unit == 'm' ? amount : unit == 'h' ? amount * 60 : amount * MINUTES_PER_DAY;
+            if (period <= 0 || period > Integer.MAX_VALUE) {
+                throw new InvalidMedicationException("Invalid interval: " + every.group(1) + every.group(2));
+            }
+            String[] bounds = bounds(every.group(3), t);
+            LocalDateTime start = bounds[0] == null ? now.withSecond(0).withNano(0) : parseDateTime(bounds[0]);
+            if (start.isBefore(now.withSecond(0).withNano(0))) {
+                throw new InvalidMedicationException("Schedule cannot be in the past: " + bounds[0]);
+            }
+            long first = Medication.toEpochMinute(start);
+            return new RecurringSchedule(first, (int) period, new int[] {0}, first, parseUntil(bounds[1], start));
+        }
+        Matcher daily = DAILY.matcher(t);
+        if (daily.matches()) {
+            String[] times = daily.group(1).split(",");
+            int[] offsets = new int[times.length];
+            for (int i = 0; i < times.length; i++) {
+                try {
+                    LocalTime time = LocalTime.parse(times[i].trim(), TIME);
+                    offsets[i] = time.getHour() * 60 + time.getMinute();
+                } catch (DateTimeParseException e) {
+                    throw new InvalidMedicationException("Invalid time of day: " + times[i].trim());
+                }
+            }
+            offsets = Arrays.stream(offsets).sorted().distinct().toArray();
+            String[] bounds = bounds(daily.group(2), t);
+            LocalDate startDay = bounds[0] == null ? now.toLocalDate() : parseDate(bounds[0]);
+            if (startDay.isBefore(now.toLocalDate())) {
+                throw new InvalidMedicationException("Schedule cannot be in the past: " + bounds[0]);
+            }
+            LocalDateTime start = startDay.atStartOfDay();
+            long notBefore = Math.max(Medication.toEpochMinute(start), Medication.toEpochMinute(now.withSecond(0).withNano(0)));
+            return new RecurringSchedule(Medication.toEpochMinute(start), MINUTES_PER_DAY, offsets,
+                    notBefore, parseUntil(bounds[1], start));
+        }
+        throw new InvalidMedicationException("Invalid schedule rule: " + t);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long minuteAt(int ordinal) {
+        return rawMinute(ordinal + skip);
+    }
+
+    public int ceilingOrdinal(long minute) {
+        long raw = rawCeiling(minute) - skip;
+        if (raw <= 0) return 0;
+        return raw >= size ? size : (int) raw;
+    }
+
+    public long getAnchor() {
+        return anchor;
+    }
+
+    public int getPeriod() {
+        return period;
+    }
+
+    public int[] getOffsets() {
+        return offsets.clone();
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getUntil() {
+        return until;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        LocalDateTime start = Medication.fromEpochMinute(anchor);
+        boolean daily = period == MINUTES_PER_DAY && start.toLocalTime().equals(LocalTime.MIDNIGHT);
+        if (daily) {
+            sb.append("daily at ");
+            for (int i = 0; i < offsets.length; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(LocalTime.ofSecondOfDay(offsets[i] * 60L).format(TIME));
+            }
+            sb.append(" from ").append(start.format(DATE));
+        } else {
+            sb.append("every ");
+            if (period % MINUTES_PER_DAY == 0) sb.append(period / MINUTES_PER_DAY).append('d');
+            else if (period % 60 == 0) sb.append(period / 60).append('h');
+            else sb.append(period).append('m');
+            sb.append(" from ").append(start.format(DATE_TIME));
+        }
+        if (until != Long.MAX_VALUE) {
+            LocalDateTime end = Medication.fromEpochMinute(until);
+            sb.append(" until ").append(daily ? end.toLocalDate().format(DATE) : end.format(DATE_TIME));
+        }
+        return sb.toString();
+    }
+
+    private long rawMinute(long k) {
+        return anchor + (k / offsets.length) * period + offsets[(int) (k % offsets.length)];
+    }
+
+    // Index of the first unbounded occurrence at or after the minute, counted from the anchor.
+    private long rawCeiling(long minute) {
+        if (minute <= anchor + offsets[0]) return 0;
+        long cycle = Math.floorDiv(minute - anchor, period);
+        long within = minute - anchor - cycle * period;
+        int index = Arrays.binarySearch(offsets, (int) within);
+        if (index < 0) index = -index - 1;
+        if (index == offsets.length) {
+            cycle++;
+            index = 0;
+        }
+        return cycle * offsets.length + index;
+    }
+
+    private static String[] bounds(String rest, String rule) throws InvalidMedicationException {
+        if (rest == null || rest.isBlank()) return new String[2];
+        Matcher m = BOUNDS.matcher(rest);
+        if (!m.matches()) throw new InvalidMedicationException("Invalid schedule rule: " + rule);
+        return new String[] {m.group(1), m.group(2)};
+    }
+
+    private static long parseUntil(String text, LocalDateTime start) throws InvalidMedicationException {
+        if (text == null) return Long.MAX_VALUE;
+        LocalDateTime end = text.trim().length() <= 10 ? parseDate(text).atTime(23, 59) : parseDateTime(text);
+        if (end.isBefore(start)) throw new InvalidMedicationException("Schedule end is before its start: " + text.trim());
+        return Medication.toEpochMinute(end);
+    }
+
+    private static LocalDateTime parseDateTime(String text) throws InvalidMedicationException {
+        try {
+            return LocalDateTime.parse(text.trim(), DATE_TIME);
+        } catch (DateTimeParseException e) {
+            throw new InvalidMedicationException("Invalid schedule format: " + text.trim());
+        }
+    }
+
+    private static LocalDate parseDate(String text) throws InvalidMedicationException {
+        try {
+            return LocalDate.parse(text.trim(), DATE);
+        } catch (DateTimeParseException e) {
+            throw new InvalidMedicationException("Invalid date format: " + text.trim());
+        }
+    }
+}
@@ -1,10 +1,18 @@
+import java.io.IOException;
+import java.time.ZoneId;
+
 public class ReminderRecord extends Record{
 
+    public ReminderRecord(long epochSecond, String description){
+        super(epochSecond, description);
+    }
+
     public ReminderRecord(String dateTime, String description){
         super(dateTime, description);
     }
 
-    public void displayRecord(){
-        System.out.println(dateTime + " - Reminder: " + description);
+    public void appendTo(Appendable out, ZoneId zone) throws IOException{
+        Timestamps.appendSecond(Timestamps.toWallClock(epochSecond, zone), out);
+        out.append(" - Reminder: ").append(description);
     }
 }
\ No newline at end of file
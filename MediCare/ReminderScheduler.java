@@ -0,0 +1,193 @@
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+public class ReminderScheduler {
+    public interface Listener {
+        void onDue(Medication medication, LocalDateTime schedule);
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final Medication medication;
+        private final Listener listener;
+        private final LocalDateTime due;
+        private final Instant dueAt;
+        private boolean firing;
+
+        Entry(Medication medication, Listener listener, LocalDateTime due, Instant dueAt) {
+            this.medication = medication;
+            this.listener = listener;
+            this.due = due;
+            this.dueAt = dueAt;
+        }
+
+        public int compareTo(Entry other) {
+            return due.compareTo(other.due);
+        }
+    }
+
+    // One entry per medication: its earliest schedule that is neither reminded nor taken.
+    // Re-arming leaves the old entry in the heap; it is dropped when it reaches the head.
+    // A firing entry stays in armed until it re-arms, so a concurrent edit or delete wins.
+    private static final Metrics.Counter ARMED = Metrics.global().level("medicare_reminders_armed",
+            "Medications with a reminder waiting, across all schedulers");
+    private static final Metrics.Histogram SCAN_TIME = Metrics.global().histogram("medicare_reminder_scan_seconds",
+            "Time to deliver every due reminder of one medication and re-arm it");
+
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+    private final Map<Medication, Entry> armed = new HashMap<>();
+    private final Executor dispatcher;
+    private final Clock clock;
+    private final Thread thread;
+
+    public ReminderScheduler() {
+        this(Runnable::run);
+    }
+
+    public ReminderScheduler(Executor dispatcher) {
+        this(dispatcher, Clock.systemDefaultZone());
+    }
+
+    // Due reminders are handed to the dispatcher, so one scheduler thread can serve many patients. Schedules
+    // are wall-clock times in the clock's zone. On a VirtualClock there is no thread: reminders fire on
+    // whichever thread advances the clock.
+    public ReminderScheduler(Executor dispatcher, Clock clock) {
+        this.clock = clock;
+        if (clock instanceof VirtualClock) {
+            this.dispatcher = Runnable::run;
+            ((VirtualClock) clock).register(new VirtualClock.Timer() {
+                public Instant nextDue() {
+                    synchronized (ReminderScheduler.this) {
+                        Entry head = head();
+                        return head == null ? null : head.dueAt;
+                    }
+                }
+
+                public void runDue() {
+                    Entry due = pollDue();
+                    if (due != null) fire(due);
+                }
+            });
+            thread = null;
+            return;
+        }
+        this.dispatcher = dispatcher;
+        thread = new Thread(this::run);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Stops the thread; reminders still armed never fire. Ones already handed to the dispatcher still run.
+    public void close() {
+        if (thread != null) thread.interrupt();
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public synchronized void schedule(Medication medication, Listener listener) {
+        int before = armed.size();
+        arm(medication, listener);
+        ARMED.add(armed.size() - before);
+    }
+
+    private void arm(Medication medication, Listener listener) {
+        LocalDateTime next = medication.nextPendingSchedule();
+        Entry current = armed.get(medication);
+        if (current != null && next != null && current.due.equals(next) && current.listener == listener) return;
+        armed.remove(medication);
+        if (next == null) return;
+
+        Entry entry = new Entry(medication, listener, next, dueAt(next));
+        armed.put(medication, entry);
+        queue.add(entry);
+        if (queue.size() > 2 * armed.size() + 64) {
+            queue.clear();
+            for (Entry e : armed.values()) {
+                if (!e.firing) queue.add(e);
+            }
+        }
+        if (queue.peek() == entry) notifyAll();
+    }
+
+    public synchronized void cancel(Medication medication) {
+        if (armed.remove(medication) != null) ARMED.add(-1);
+    }
+
+    public synchronized int size() {
+        return armed.size();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Entry due = awaitNextDue();
+                dispatcher.execute(() -> fire(due));
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private void fire(Entry entry) {
+        long start = System.nanoTime();
+        Medication due = entry.medication;
+        Instant now = clock.instant();
+        LocalDateTime schedule;
+        while ((schedule = due.claimDueSchedule(now, clock.getZone())) != null) {
+            entry.listener.onDue(due, schedule);
+        }
+        synchronized (this) {
+            if (armed.get(due) == entry) {
+                armed.remove(due);
+                ARMED.add(-1);
+                schedule(due, entry.listener);
+            }
+        }
+        SCAN_TIME.record(System.nanoTime() - start);
+    }
+
+    private synchronized Entry awaitNextDue() throws InterruptedException {
+        while (true) {
+            Entry head = head();
+            if (head == null) {
+                wait();
+                continue;
+            }
+            long waitMillis = Duration.between(clock.instant(), head.dueAt).toMillis();
+            if (waitMillis > 0) {
+                wait(waitMillis);
+                continue;
+            }
+            head.firing = true;
+            return queue.poll();
+        }
+    }
+
+    private synchronized Entry pollDue() {
+        Entry head = head();
+        if (head == null || head.dueAt.isAfter(clock.instant())) return null;
+        head.firing = true;
+        return queue.poll();
+    }
+
+    // Caller holds the lock.
+    private Entry head() {
+        Entry head = queue.peek();
+        while (head != null && armed.get(head.medication) != head) {
+            queue.poll();
+            head = queue.peek();
+        }
+        return head;
+    }
+
+    private Instant dueAt(LocalDateTime schedule) {
+        return Timestamps.toInstant(schedule, clock.getZone());
+    }
+}
@@ -0,0 +1,202 @@
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+// Usage: java ReminderSimulation [key=value ...]
+//   patients=10000 medications=3 days=30 start=2026-03-01 zone=America/New_York taken=80 seed=1
+// Replays `days` of reminders for every patient on a VirtualClock, without waiting: patients are in-memory
+// PatientRegistry shards, and the clock jumps from one due reminder or grace-window deadline to the next.
+// Patients take `taken` percent of their doses as soon as they are reminded; the rest turn overdue, then missed.
+// Checks that every dose in the window was reminded exactly once, at its wall-clock time in the zone (across DST
+// changes too), that exactly the untaken doses were escalated, on time, and that adherence counts them as missed
+// only then. The digest covers every event and when it happened, so two runs with the same options print the same
+// one. Exits with status 1 if a check fails.
+public class ReminderSimulation {
+    private static final String[] RULES = {
+        "daily at 08:00, 20:00",
+        "every 8h",
+        "daily at 02:30",
+        "daily at 07:15, 13:15, 21:15",
+        "every 6h",
+        "daily at 01:30",
+    };
+
+    private int patients = 10_000;
+    private int medications = 3;
+    private int days = 30;
+    private LocalDate start = LocalDate.of(2026, 3, 1);
+    private ZoneId zone = ZoneId.of("America/New_York");
+    private int takenPercent = 80;
+    private long seed = 1;
+
+    private VirtualClock clock;
+    private MediCareService[] services;
+    private long[][] lastReminded;
+    private int[][] reminded;
+    private long reminders;
+    private long overdue;
+    private long missed;
+    private long duplicates;
+    private long late;
+    private long escalatedTaken;
+    private long digest;
+
+    public static void main(String[] args) throws Exception {
+        ReminderSimulation simulation = new ReminderSimulation();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("Expected key=value: " + arg);
+            String key = arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+            switch (key) {
+                case "patients": simulation.patients = Integer.parseInt(value); break;
+                case "medications": simulation.medications = Integer.parseInt(value); break;
+                case "days": simulation.days = Integer.parseInt(value); break;
+                case "start": simulation.start = LocalDate.parse(value); break;
+                case "zone": simulation.zone = ZoneId.of(value); break;
+                case "taken": simulation.takenPercent = Integer.parseInt(value); break;
+                case "seed": simulation.seed = Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown option: " + key);
+            }
+        }
+        if (simulation.patients < 1 || simulation.medications < 1 || simulation.days < 1) {
+            throw new IllegalArgumentException("patients, medications and days must be positive");
+        }
+        System.exit(simulation.run() ? 0 : 1);
+    }
+
+    private boolean run() throws InvalidMedicationException {
+        Instant begin = Timestamps.toInstant(start.atStartOfDay(), zone);
+        Instant end = Timestamps.toInstant(start.plusDays(days).atStartOfDay(), zone);
+        clock = new VirtualClock(begin, zone);
+        PatientRegistry registry = new PatientRegistry(null, 1, null, clock, System.out::println);
+        services = new MediCareService[patients];
+        lastReminded = new long[patients][medications];
+        reminded = new int[patients][medications];
+
+        long wallStart = System.nanoTime();
+        for (int p = 0; p < patients; p++) {
+            int patient = p;
+            MediCareService service = registry.get("patient-" + p);
+            service.setReminderListener((m, schedule) -> onReminder(patient, m, schedule));
+            service.setEscalationListener(e -> onEscalation(patient, e));
+            List<MediCareService.NewMedication> batch = new ArrayList<>(medications);
+            for (int i = 0; i < medications; i++) {
+                batch.add(new MediCareService.NewMedication("Medication " + i, "100mg",
+                        service.parseSchedule(RULES[(p + i) % RULES.length]), "With water"));
+            }
+            service.addMedications(batch);
+            services[p] = service;
+        }
+        System.out.printf("%d patients, %d medications each, %s to %s in %s%n", patients, medications,
+                start, start.plusDays(days), zone);
+
+        for (int day = 1; day <= days; day++) {
+            clock.advanceTo(Timestamps.toInstant(start.plusDays(day).atStartOfDay(), zone));
+            if (day % 7 == 0 || day == days) {
+                System.out.printf("day %3d  %,12d reminders %,10d overdue %,10d missed  %,8d ms%n", day,
+                        reminders, overdue, missed, (System.nanoTime() - wallStart) / 1_000_000);
+            }
+        }
+        long wallMillis = Math.max(1, (System.nanoTime() - wallStart) / 1_000_000);
+        System.out.printf("%,d reminders and %,d escalations in %,d ms (%,.0f events/s), digest %016x%n",
+                reminders, overdue + missed, wallMillis, (reminders + overdue + missed) * 1000.0 / wallMillis, digest);
+
+        long unreminded = 0;
+        long expectedOverdue = 0;
+        long expectedMissed = 0;
+        long countedMissed = 0;
+        long recomputedDiffers = 0;
+        for (int p = 0; p < patients; p++) {
+            AdherenceTracker.Snapshot running = services[p].adherence();
+            countedMissed += running.getMissed();
+            services[p].recomputeAdherence();
+            AdherenceTracker.Snapshot recomputed = services[p].adherence();
+            if (recomputed.getScheduled() != running.getScheduled() || recomputed.getTaken() != running.getTaken()
+                    || recomputed.getMissed() != running.getMissed()) {
+                recomputedDiffers++;
+            }
+            for (Medication m : services[p].medications()) {
+                Schedule schedule = m.getSchedule();
+                int due = 0;
+                for (int o = 0; o < schedule.size(); o++) {
+                    LocalDateTime at = Medication.fromEpochMinute(schedule.minuteAt(o));
+                    if (Timestamps.toInstant(at, zone).isAfter(end)) break;
+                    due++;
+                    if (takes(p, m.getId(), at)) continue;
+                    if (!Timestamps.toInstant(at.plusMinutes(m.getOverdueAfterMinutes()), zone).isAfter(end)) expectedOverdue++;
+                    if (!Timestamps.toInstant(at.plusMinutes(m.getMissedAfterMinutes()), zone).isAfter(end)) expectedMissed++;
+                }
+                unreminded += Math.abs(due - reminded[p][(int) m.getId() - 1]);
+            }
+        }
+        registry.close();
+
+        boolean ok = true;
+        ok &= check("every due dose reminded", unreminded);
+        ok &= check("no reminder delivered twice or out of order", duplicates);
+        ok &= check("every reminder and escalation at its wall-clock time", late);
+        ok &= check("every untaken dose turned overdue (" + expectedOverdue + ")", Math.abs(overdue - expectedOverdue));
+        ok &= check("every untaken dose turned missed (" + expectedMissed + ")", Math.abs(missed - expectedMissed));
+        ok &= check("no taken dose escalated", escalatedTaken);
+        ok &= check("adherence counts exactly the missed doses", Math.abs(countedMissed - missed));
+        ok &= check("recomputed adherence matches the running counts", recomputedDiffers);
+        return ok;
+    }
+
+    // Runs on the thread advancing the clock, so nothing here needs locking.
+    private void onReminder(int patient, Medication m, LocalDateTime schedule) {
+        int slot = (int) m.getId() - 1;
+        long minute = Medication.toEpochMinute(schedule);
+        if (reminded[patient][slot] > 0 && minute <= lastReminded[patient][slot]) duplicates++;
+        lastReminded[patient][slot] = minute;
+        reminded[patient][slot]++;
+        reminders++;
+        if (!clock.instant().equals(Timestamps.toInstant(schedule, zone))) late++;
+        record(patient, m.getId(), minute, 0);
+        if (takes(patient, m.getId(), schedule)) {
+            try {
+                services[patient].logIntake(m.getId(), schedule, "");
+            } catch (InvalidMedicationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private void onEscalation(int patient, Escalation e) {
+        Medication m = services[patient].findMedication(e.getMedicationId());
+        boolean overdueStage = e.getStage() == Escalation.Stage.OVERDUE;
+        if (overdueStage) overdue++;
+        else missed++;
+        if (takes(patient, e.getMedicationId(), e.getSchedule())) escalatedTaken++;
+        LocalDateTime deadline = e.getSchedule().plusMinutes(
+                overdueStage ? m.getOverdueAfterMinutes() : m.getMissedAfterMinutes());
+        if (!clock.instant().equals(Timestamps.toInstant(deadline, zone))) late++;
+        record(patient, e.getMedicationId(), Medication.toEpochMinute(e.getSchedule()), overdueStage ? 1 : 2);
+    }
+
+    // Order-independent, so doses due in the same minute may be handled in any order.
+    private void record(int patient, long medicationId, long minute, int kind) {
+        digest += mix(mix(mix(mix(patient) + medicationId) + minute) + kind) ^ clock.instant().getEpochSecond();
+    }
+
+    private boolean takes(int patient, long medicationId, LocalDateTime schedule) {
+        long h = mix(mix(mix(seed) + patient) + medicationId) + Medication.toEpochMinute(schedule);
+        return Math.floorMod(mix(h), 100) < takenPercent;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    private static boolean check(String invariant, long violations) {
+        System.out.printf("%-4s %s%s%n", violations == 0 ? "PASS" : "FAIL", invariant,
+                violations == 0 ? "" : " (" + violations + ")");
+        return violations == 0;
+    }
+}
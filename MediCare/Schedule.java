@@ -0,0 +1,14 @@
+public interface Schedule {
+    // Number of occurrences; Integer.MAX_VALUE for an open-ended schedule.
+    int size();
+
+    long minuteAt(int ordinal);
+
+    // First ordinal whose minute is at or after the given epoch minute, or size() if there is none.
+    int ceilingOrdinal(long minute);
+
+    default int ordinalOf(long minute) {
+        int ordinal = ceilingOrdinal(minute);
+        return ordinal < size() && minuteAt(ordinal) == minute ? ordinal : -1;
+    }
+}
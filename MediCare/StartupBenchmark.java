@@ -0,0 +1,116 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Usage: java StartupBenchmark [medications] [runs] [extra JVM options...]
+// Saves a store of that many medications in a scratch directory, then launches the console there again and
+// again. Each launch is timed from process start to the main menu being printed, and, since the menu comes up
+// before the store is restored, to the first command (listing the medications) finishing on the restored data.
+public class StartupBenchmark {
+    private static final int DEFAULT_MEDICATIONS = 50_000;
+    private static final int DEFAULT_RUNS = 10;
+    private static final int BATCH = 1024;
+    private static final String MENU = "MEDICARE MAIN MENU";
+    private static final String LIST = "4\n";
+    private static final String EXIT = "9\n";
+
+    public static void main(String[] args) throws Exception {
+        int medications = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MEDICATIONS;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RUNS;
+        List<String> jvmOptions = args.length > 2 ? Arrays.asList(args).subList(2, args.length) : List.of();
+
+        Path dir = Files.createTempDirectory("medicare-startup");
+        long start = System.nanoTime();
+        createStore(dir, medications);
+        System.out.printf("store of %d medications saved in %.0f ms (%s)%n", medications,
+                (System.nanoTime() - start) / 1e6, dir);
+
+        // The last line the listing prints once every medication is back.
+        String listed = medications == 0 ? "No medications stored."
+                : medications + ") Name: Medication " + (medications - 1) + " |";
+        long[] menu = new long[runs];
+        long[] firstCommand = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long[] millis = launch(dir, jvmOptions, listed);
+            menu[i] = millis[0];
+            firstCommand[i] = millis[1];
+        }
+        System.out.println("JVM options: " + (jvmOptions.isEmpty() ? "default" : String.join(" ", jvmOptions)));
+        System.out.printf("%-28s %10s %10s %10s %10s%n", "startup to", "runs", "min ms", "median ms", "max ms");
+        print("menu", menu);
+        print("first command on restore", firstCommand);
+    }
+
+    private static void print(String label, long[] millis) {
+        long[] sorted = millis.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-28s %10d %10d %10d %10d%n", label, sorted.length, sorted[0], sorted[sorted.length / 2],
+                sorted[sorted.length - 1]);
+    }
+
+    private static void createStore(Path dir, int count) throws IOException {
+        Journal journal = MediCareManager.openJournal(dir.resolve("medicare.journal"));
+        MediCareService service = new MediCareService(200, dir.resolve("medicare-history.log"), journal);
+        List<MediCareService.NewMedication> batch = new ArrayList<>(BATCH);
+        for (int i = 0; i < count; i++) {
+            String rule = "daily at " + String.format("%02d:%02d", 6 + i % 16, i % 60);
+            try {
+                batch.add(new MediCareService.NewMedication("Medication " + i, (i % 4 + 1) * 50 + "mg",
+                        service.parseSchedule(rule), "With water"));
+            } catch (InvalidMedicationException e) {
+                throw new IllegalStateException(e);
+            }
+            if (batch.size() == BATCH || i == count - 1) {
+                service.addMedications(batch);
+                batch.clear();
+            }
+        }
+        for (int i = 0; i < 200; i++) service.addFeedback("Fine", "None");
+        service.close();
+    }
+
+    // Milliseconds to the menu and to the listing's last line.
+    private static long[] launch(Path dir, List<String> jvmOptions, String listed)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(Paths.get(System.getProperty("java.class.path")).toAbsolutePath().toString());
+        command.add("Main");
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true).start();
+        long menu = -1;
+        long firstCommand = -1;
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            OutputStream in = process.getOutputStream();
+            for (String line = out.readLine(); line != null; line = out.readLine()) {
+                if (menu < 0 && line.contains(MENU)) {
+                    menu = (System.nanoTime() - start) / 1_000_000;
+                    in.write(LIST.getBytes(StandardCharsets.UTF_8));
+                    in.flush();
+                } else if (menu >= 0 && line.contains(listed)) {
+                    firstCommand = (System.nanoTime() - start) / 1_000_000;
+                    break;
+                }
+            }
+            in.write(EXIT.getBytes(StandardCharsets.UTF_8));
+            in.flush();
+            while (out.readLine() != null) {
+                // drain until the console exits
+            }
+        }
+        process.waitFor();
+        if (menu < 0) throw new IllegalStateException("The console exited before showing the menu");
+        if (firstCommand < 0) throw new IllegalStateException("The console exited before listing the restored store");
+        return new long[] {menu, firstCommand};
+    }
+}
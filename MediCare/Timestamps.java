@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneRules;
+import java.time.format.DateTimeFormatter;
+
+// Renders epoch minutes and seconds as "yyyy-MM-dd HH:mm" and "yyyy-MM-dd HH:mm:ss" without going through
+// java.time. Both are wall-clock times read as UTC; an instant goes through toWallClock first.
+// Minute strings are kept in a small direct-mapped cache: listings and history dumps keep hitting the same few
+// minutes, so after the first line each timestamp costs a lookup and a couple of appends.
+public final class Timestamps {
+    private static final int CACHE_SIZE = 4096;
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    // Only for years outside 0000-9999.
+    private static final DateTimeFormatter FALLBACK = DateTimeFormatter.ofPattern("uuuu-MM-dd HH:mm");
+
+    private static final class Entry {
+        private final long minute;
+        private final String text;
+
+        Entry(long minute, String text) {
+            this.minute = minute;
+            this.text = text;
+        }
+    }
+
+    // Entries are immutable, so a racing reader sees either a whole entry or a miss.
+    private static final Entry[] CACHE = new Entry[CACHE_SIZE];
+
+    private Timestamps() {
+    }
+
+    public static LocalDateTime fromEpochSecond(long second) {
+        return LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC);
+    }
+
+    // The wall-clock time in the zone at an instant, as the epoch second of that local time read as UTC, the form
+    // fromEpochSecond and the renderers below take.
+    public static long toWallClock(long epochSecond, ZoneId zone) {
+        ZoneRules rules = zone.getRules();
+        Instant at = rules.isFixedOffset() ? Instant.EPOCH : Instant.ofEpochSecond(epochSecond);
+        return epochSecond + rules.getOffset(at).getTotalSeconds();
+    }
+
+    // The instant a wall-clock time is first reached in the zone. A time skipped by a DST gap maps to the end
+    // of the gap and a repeated one to its first pass, so later local times never map to earlier instants.
+    public static Instant toInstant(LocalDateTime t, ZoneId zone) {
+        ZoneRules rules = zone.getRules();
+        if (rules.isFixedOffset()) return t.toInstant(rules.getOffset(Instant.EPOCH));
+        if (rules.getValidOffsets(t).isEmpty()) return rules.getTransition(t).getInstant();
+        return t.atZone(zone).toInstant();
+    }
+
+    // "yyyy-MM-dd HH:mm"
+    public static String minute(long epochMinute) {
+        int slot = (int) (epochMinute & (CACHE_SIZE - 1));
+        Entry e = CACHE[slot];
+        if (e != null && e.minute == epochMinute) return e.text;
+        StringBuilder sb = new StringBuilder(16);
+        render(epochMinute, sb);
+        String text = sb.toString();
+        CACHE[slot] = new Entry(epochMinute, text);
+        return text;
+    }
+
+    public static String minute(LocalDateTime t) {
+        return minute(Medication.toEpochMinute(t));
+    }
+
+    // "yyyy-MM-dd HH:mm:ss"
+    public static String second(long epochSecond) {
+        StringBuilder sb = new StringBuilder(19);
+        appendSecond(epochSecond, sb);
+        return sb.toString();
+    }
+
+    public static void appendSecond(long epochSecond, StringBuilder out) {
+        out.append(minute(Math.floorDiv(epochSecond, 60)));
+        twoDigits(Math.floorMod(epochSecond, 60), out.append(':'));
+    }
+
+    public static void appendSecond(long epochSecond, Appendable out) throws IOException {
+        if (out instanceof StringBuilder) {
+            appendSecond(epochSecond, (StringBuilder) out);
+            return;
+        }
+        int s = Math.floorMod(epochSecond, 60);
+        out.append(minute(Math.floorDiv(epochSecond, 60))).append(':')
+                .append((char) ('0' + s / 10)).append((char) ('0' + s % 10));
+    }
+
+    // Civil date from day number (Howard Hinnant's days_from_civil, inverted).
+    private static void render(long epochMinute, StringBuilder out) {
+        long day = Math.floorDiv(epochMinute, MINUTES_PER_DAY);
+        int minuteOfDay = Math.floorMod(epochMinute, MINUTES_PER_DAY);
+        long z = day + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int dayOfMonth = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            FALLBACK.formatTo(fromEpochSecond(epochMinute * 60), out);
+            return;
+        }
+        int y = (int) year;
+        twoDigits(y / 100, out);
+        twoDigits(y % 100, out);
+        twoDigits(month, out.append('-'));
+        twoDigits(dayOfMonth, out.append('-'));
+        twoDigits(minuteOfDay / 60, out.append(' '));
+        twoDigits(minuteOfDay % 60, out.append(':'));
+    }
+
+    private static void twoDigits(int n, StringBuilder out) {
+        out.append((char) ('0' + n / 10)).append((char) ('0' + n % 10));
+    }
+}
@@ -0,0 +1,95 @@
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+// Usage: java TransferRoundTrip
+// Exports a patient's medications part-way through their schedules, in both formats, and imports each file into
+// a fresh patient on the same clock. Checks that every import succeeds and brings back the same names, dosages,
+// instructions (commas, quotes and line breaks included) and doses still to take, and that medications with no
+// doses left are not exported. Exits with status 1 if a check fails.
+public class TransferRoundTrip {
+    private static final int COMPARED_OCCURRENCES = 50;
+
+    public static void main(String[] args) throws Exception {
+        VirtualClock clock = new VirtualClock(Instant.now().truncatedTo(ChronoUnit.MINUTES), ZoneId.systemDefault());
+        LocalDateTime start = LocalDateTime.now(clock);
+        MediCareService source = open(clock);
+        String times = String.join(", ", Timestamps.minute(start.plusHours(1)), Timestamps.minute(start.plusHours(3)),
+                Timestamps.minute(start.plusHours(5)), Timestamps.minute(start.plusDays(1)));
+        Medication aspirin = source.addMedication("Aspirin", "100mg", times,
+                "After meals, with \"plenty\" of water\nNot on an empty stomach");
+        source.addMedication("Metformin, extended release", "500mg", "daily at 08:00, 20:00", "With dinner");
+        Medication vitamin = source.addMedication("Vitamin D", "1000 IU", "every 6h", "Morning, with food");
+        source.addMedication("Ibuprofen", "200mg", Timestamps.minute(start.plusMinutes(30)), "As needed");
+
+        clock.advance(Duration.ofMinutes(150));
+        LocalDateTime now = LocalDateTime.now(clock);
+        source.logIntake(aspirin.getId(), start.plusHours(1), "");
+        source.logIntake(aspirin.getId(), start.plusDays(1), "taken early");
+        source.logIntake(vitamin.getId(), vitamin.nextUntakenSchedule(now), "taken early");
+        Medication[] medications = source.medications();
+        long from = Medication.toEpochMinute(now);
+
+        boolean ok = true;
+        for (MedicationTransfer.Format format : MedicationTransfer.Format.values()) {
+            StringWriter file = new StringWriter();
+            int written = MedicationTransfer.exportMedications(medications, file, format, now);
+            MediCareService target = open(clock);
+            MedicationTransfer.Report report = MedicationTransfer.importFrom(new StringReader(file.toString()), format,
+                    target);
+
+            long mismatched = 0;
+            for (Medication m : medications) {
+                Medication copy = find(target, m.getName());
+                List<Long> pending = pending(m, from);
+                if (pending.isEmpty()) {
+                    if (copy != null) mismatched++;
+                } else if (copy == null || !copy.getDosage().equals(m.getDosage())
+                        || !copy.getInstructions().equals(m.getInstructions())
+                        || !pending(copy, from).equals(pending)) {
+                    mismatched++;
+                }
+            }
+            long lines = file.toString().chars().filter(c -> c == '\n').count();
+            System.out.println(format + ":");
+            ok &= check("every exported medication imported",
+                    report.getFailed() + Math.abs(report.getImported() - written));
+            ok &= check("medications with no doses left not exported", Math.abs(written - (medications.length - 1)));
+            ok &= check("names, dosages, instructions and pending doses survive", mismatched);
+            ok &= check("errors count lines, not records", Math.abs(report.getLines() - lines));
+            target.close();
+        }
+        source.close();
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static List<Long> pending(Medication m, long from) {
+        Schedule schedule = m.pendingSchedule(from);
+        List<Long> minutes = new ArrayList<>();
+        for (int i = 0; i < schedule.size() && i < COMPARED_OCCURRENCES; i++) minutes.add(schedule.minuteAt(i));
+        return minutes;
+    }
+
+    private static Medication find(MediCareService service, String name) {
+        for (Medication m : service.medications()) {
+            if (m.getName().equals(name)) return m;
+        }
+        return null;
+    }
+
+    private static MediCareService open(VirtualClock clock) {
+        return new MediCareService(200, null, null, null, null, Runnable::run, clock);
+    }
+
+    private static boolean check(String invariant, long violations) {
+        System.out.printf("%-4s %s%s%n", violations == 0 ? "PASS" : "FAIL", invariant,
+                violations == 0 ? "" : " (" + violations + ")");
+        return violations == 0;
+    }
+}
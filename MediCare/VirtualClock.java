@@ -0,0 +1,83 @@
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// A clock that only moves when it is advanced. Reminder schedulers and missed-dose monitors built on one start
+// no thread: advancing walks from deadline to deadline and runs whatever is due on the calling thread, so a
+// month of reminders replays as fast as they can be handled, and in the same order every time.
+public class VirtualClock extends Clock {
+    // Anything with deadlines on this clock. runDue() must handle at least what is due at nextDue().
+    public interface Timer {
+        // Null while nothing is waiting.
+        Instant nextDue();
+
+        void runDue();
+    }
+
+    // Shared by the views withZone() returns.
+    private static final class Timeline {
+        private volatile Instant now;
+        private final List<Timer> timers = new CopyOnWriteArrayList<>();
+
+        Timeline(Instant start) {
+            now = start;
+        }
+    }
+
+    private final Timeline timeline;
+    private final ZoneId zone;
+
+    public VirtualClock(Instant start, ZoneId zone) {
+        this(new Timeline(start), zone);
+    }
+
+    private VirtualClock(Timeline timeline, ZoneId zone) {
+        this.timeline = timeline;
+        this.zone = zone;
+    }
+
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    public Clock withZone(ZoneId zone) {
+        return zone.equals(this.zone) ? this : new VirtualClock(timeline, zone);
+    }
+
+    public Instant instant() {
+        return timeline.now;
+    }
+
+    public void register(Timer timer) {
+        timeline.timers.add(timer);
+    }
+
+    public void advance(Duration amount) {
+        advanceTo(instant().plus(amount));
+    }
+
+    // Stops at every deadline up to and including target, earliest first, including ones set on the way.
+    // The clock never moves backwards.
+    public void advanceTo(Instant target) {
+        synchronized (timeline) {
+            while (true) {
+                Timer next = null;
+                Instant due = null;
+                for (Timer timer : timeline.timers) {
+                    Instant d = timer.nextDue();
+                    if (d != null && !d.isAfter(target) && (due == null || d.isBefore(due))) {
+                        next = timer;
+                        due = d;
+                    }
+                }
+                if (next == null) break;
+                if (due.isAfter(timeline.now)) timeline.now = due;
+                next.runDue();
+            }
+            if (target.isAfter(timeline.now)) timeline.now = target;
+        }
+    }
+}